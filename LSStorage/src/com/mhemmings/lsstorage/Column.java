@@ -12,4 +12,56 @@ import java.lang.annotation.Target;
 @Retention(RetentionPolicy.RUNTIME)
 public @interface Column {
 	String value();
+
+	/**
+	 * Lazy columns are left out of the default projection, so they are never
+	 * passed to {@link LSTable#out}. Read them with
+	 * {@link LSController#openBlob}, which streams them a chunk at a time
+	 */
+	boolean lazy() default false;
+
+	/**
+	 * Values larger than this many bytes are written to a content-addressed
+	 * file next to the database and only a reference is kept in the row. 0
+	 * (the default) never offloads. Offloaded columns are always lazy
+	 */
+	int offload() default 0;
+
+	/**
+	 * Compress TEXT and BLOB values with Deflate as they are written and
+	 * decompress them as they are read. Compressed values are stored as BLOBs.
+	 * Ignored on INTEGER and REAL columns
+	 */
+	boolean compress() default false;
+
+	/**
+	 * Values of a compressed column which are this many bytes or smaller are
+	 * stored raw, as compressing them costs more than it saves
+	 */
+	int compressAbove() default 256;
+
+	/**
+	 * Keep an in-process index of this column, so that
+	 * {@code findOne(table, whereEquals(column, value))} is answered with a
+	 * hash lookup instead of a query. Best suited to columns whose values are
+	 * unique or nearly so. Only INTEGER and uncompressed TEXT columns can be
+	 * indexed; the option is ignored for any other column.
+	 * 
+	 * The index caches the objects it finds, so every caller of such a
+	 * {@code findOne} gets the same instance. Treat them as immutable, just
+	 * like the objects of a {@link LSTable#STORAGE_MIRRORED} table: copy one
+	 * before changing it, and only write to the table through the
+	 * {@link LSController}
+	 */
+	boolean index() default false;
+
+	/**
+	 * Holds the row's version, for optimistic concurrency. Rows are saved at
+	 * version 1 unless the object says otherwise. The {@link LSController}
+	 * adds one in the same UPDATE whenever it changes a row, and a trigger
+	 * does it for updates made outside the controller. See
+	 * {@link LSController#updateVersioned}. Only an INTEGER column can be the
+	 * version, and only one per table
+	 */
+	boolean version() default false;
 }
@@ -0,0 +1,66 @@
+package com.mhemmings.lsstorage;
+
+/**
+ * One entry of a table's change log, as returned by
+ * {@link LSController#changesSince}. Only the latest change to each row is
+ * kept, so an {@link #UPDATE} may be the first a reader hears of a row and
+ * should be treated as an insert if the row is unknown
+ * 
+ * @param <T>
+ *            The type of {@link LSObject} stored in the table
+ */
+public final class LSChange<T extends LSObject> {
+	public static final int INSERT = 1;
+	public static final int UPDATE = 2;
+	public static final int DELETE = 3;
+
+	private final long seq;
+	private final long id;
+	private final int operation;
+	private final T object;
+
+	LSChange(long seq, long id, int operation, T object) {
+		this.seq = seq;
+		this.id = id;
+		this.operation = operation;
+		this.object = object;
+	}
+
+	/**
+	 * Gets the sequence number of the change. Pass the last one seen to
+	 * {@link LSController#changesSince} to carry on from here
+	 * 
+	 * @return The sequence number
+	 */
+	public long getSeq() {
+		return seq;
+	}
+
+	/**
+	 * Gets the {@code _id} of the row which changed
+	 * 
+	 * @return The row id
+	 */
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * Gets what happened to the row
+	 * 
+	 * @return One of {@link #INSERT}, {@link #UPDATE} or {@link #DELETE}
+	 */
+	public int getOperation() {
+		return operation;
+	}
+
+	/**
+	 * Gets the row as it is now
+	 * 
+	 * @return The {@link LSObject}, or {@code null} for a {@link #DELETE} or
+	 *         a row deleted since the change was read
+	 */
+	public T getObject() {
+		return object;
+	}
+}
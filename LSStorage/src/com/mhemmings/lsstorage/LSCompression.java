@@ -0,0 +1,104 @@
+package com.mhemmings.lsstorage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The codec behind {@link Column#compress}. Compressed values start with a
+ * header that can't begin valid UTF-8 text, so compressed and raw values can
+ * live side by side in the same column
+ */
+final class LSCompression {
+	private static final byte[] HEADER = { (byte) 0xFF, 'L', 'S', 'Z' };
+
+	private LSCompression() {
+	}
+
+	/**
+	 * Whether a value should be compressed. Values which happen to start with
+	 * the header are always compressed, so they can't be mistaken for
+	 * compressed values when read back
+	 */
+	static boolean shouldCompress(byte[] value, int threshold) {
+		return value.length > threshold || isCompressed(value);
+	}
+
+	static boolean isCompressed(byte[] value) {
+		if (value == null || value.length < HEADER.length)
+			return false;
+		for (int i = 0; i < HEADER.length; i++) {
+			if (value[i] != HEADER[i])
+				return false;
+		}
+		return true;
+	}
+
+	static byte[] compress(byte[] value) {
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(value);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(
+					value.length / 2 + HEADER.length);
+			out.write(HEADER, 0, HEADER.length);
+			byte[] buffer = new byte[8192];
+			while (!deflater.finished()) {
+				out.write(buffer, 0, deflater.deflate(buffer));
+			}
+			return out.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	static byte[] decompress(byte[] value) {
+		if (!isCompressed(value))
+			return value;
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(value, HEADER.length, value.length
+					- HEADER.length);
+			ByteArrayOutputStream out = new ByteArrayOutputStream(
+					value.length * 4);
+			byte[] buffer = new byte[8192];
+			while (!inflater.finished()) {
+				int inflated = inflater.inflate(buffer);
+				if (inflated == 0 && inflater.needsInput())
+					throw new IllegalStateException("Truncated value");
+				out.write(buffer, 0, inflated);
+			}
+			return out.toByteArray();
+		} catch (DataFormatException e) {
+			throw new IllegalStateException(e.getMessage());
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Wraps a stream of a possibly compressed value so that it is decompressed
+	 * as it is read
+	 */
+	static InputStream decompressing(InputStream in) throws IOException {
+		PushbackInputStream pushback = new PushbackInputStream(in,
+				HEADER.length);
+		byte[] header = new byte[HEADER.length];
+		int read = 0;
+		while (read < header.length) {
+			int count = pushback.read(header, read, header.length - read);
+			if (count == -1)
+				break;
+			read += count;
+		}
+		if (read == HEADER.length && isCompressed(header))
+			return new InflaterInputStream(pushback);
+		pushback.unread(header, 0, read);
+		return pushback;
+	}
+}
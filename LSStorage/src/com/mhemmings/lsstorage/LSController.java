@@ -1,16 +1,46 @@
 package com.mhemmings.lsstorage;
 
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 
 /**
  * A controller for all the CRUD operations on your database. You should have
@@ -19,10 +49,99 @@ import android.database.sqlite.SQLiteOpenHelper;
  * 
  */
 public abstract class LSController {
+	/**
+	 * Compact, typed, length-prefixed binary format for
+	 * {@link #exportTable} and {@link #importTable}
+	 */
+	public static final int FORMAT_BINARY = 0;
+	/**
+	 * CSV format for {@link #exportTable} and {@link #importTable}
+	 */
+	public static final int FORMAT_CSV = 1;
+	/**
+	 * SQLite's default SQLITE_MAX_VARIABLE_NUMBER. No single statement may bind
+	 * more arguments than this
+	 */
+	private static final int MAX_SQL_VARIABLES = 999;
+	/**
+	 * How much of a BLOB is read per query when streaming. Kept well below the
+	 * cursor window size
+	 */
+	private static final int BLOB_CHUNK_SIZE = 256 * 1024;
+	/**
+	 * Prefix of the TEXT reference stored in place of an offloaded BLOB
+	 */
+	private static final String BLOB_FILE_PREFIX = "lsblob:";
+	/**
+	 * How many rows {@link #importTable} inserts per transaction
+	 */
+	private static final int IMPORT_BATCH_SIZE = 1000;
+	/**
+	 * How many soft deleted rows {@link #runMaintenance} removes per
+	 * transaction, so it never holds the database for long
+	 */
+	private static final int PURGE_BATCH_SIZE = 500;
+	/**
+	 * Matches the WHERE clause made by {@code whereEquals(LSObject._ID, id)}
+	 */
+	private static final Pattern WHERE_ID = Pattern.compile("^"
+			+ LSObject._ID + "\\s*=\\s*'?(-?\\d+)'?$");
+	/**
+	 * Matches the WHERE clause made by {@link #whereEquals}
+	 */
+	private static final Pattern WHERE_EQUALS = Pattern
+			.compile("^(\\w+)='([^']*)'$");
+	/**
+	 * String and number literals, which are left out of a query's shape
+	 */
+	private static final Pattern LITERAL = Pattern
+			.compile("'(?:[^']|'')*'|\\b\\d+(?:\\.\\d+)?\\b");
+	private static final Pattern PARAMETER_LIST = Pattern
+			.compile("\\?(?:\\s*,\\s*\\?)+");
+	/**
+	 * A column compared with a value, for suggesting indexes
+	 */
+	private static final Pattern CONDITION = Pattern
+			.compile("(\\w+)\\s*(==?|<=|>=|<(?!>)|>|(?i:IS(?!\\s+NOT)|IN|BETWEEN)\\b)");
+	/**
+	 * The most query shapes diagnostics keeps, so a caller building every
+	 * query from scratch can't use up the heap
+	 */
+	private static final int MAX_QUERY_SHAPES = 500;
+	private Context context;
+	private LSDatabase lsDatabase;
 	private SQLiteOpenHelper dbHelper;
 	private SQLiteDatabase database;
+	private SQLiteDatabase memoryDatabase;
+	/**
+	 * Objects of each {@link LSTable#STORAGE_MIRRORED} table which has been
+	 * read, by table name
+	 */
+	private Map<String, LSLongMap<? extends LSObject>> mirrors;
+	/**
+	 * In-process indexes of each table with indexed columns which has been
+	 * read through one, by table name
+	 */
+	private Map<String, LSIndex<? extends LSObject>> indexes;
+	private volatile long lastUsed;
+	/**
+	 * Whether {@link #runMaintenance} is using the database file, so it
+	 * mustn't be closed. Guarded by {@link #dbHelper}
+	 */
+	private boolean maintaining;
+	/**
+	 * Stats of each query shape found while diagnostics are on, or
+	 * {@code null} while they are off
+	 */
+	private volatile Map<String, LSQueryStats> queryStats;
+	private long largeTableRows;
+	private ScheduledExecutorService maintenance;
 
 	public LSController(Context context, LSDatabase database) {
+		this.context = context;
+		this.lsDatabase = database;
+		this.mirrors = new HashMap<String, LSLongMap<? extends LSObject>>();
+		this.indexes = new HashMap<String, LSIndex<? extends LSObject>>();
 		dbHelper = new LSDatabaseHelper(context, database).helper();
 	}
 
@@ -37,15 +156,18 @@ public abstract class LSController {
 	 * @return the row ID of the newly inserted row, or -1 if an error occurred
 	 */
 	protected <T extends LSObject> long save(LSTable<T> table, T object) {
-		open();
+		open(table);
 		database.beginTransaction();
 		long row = -1L;
 		try {
 			row = database.insert(table.getName(), null,
-					table.createRow(object));
+					offload(table, table.createRow(object)));
+			if (row != -1L)
+				refreshCaches(table, new long[] { row });
 			database.setTransactionSuccessful();
 		} catch (Exception e) {
 			e.printStackTrace();
+			dropCaches(table);
 		} finally {
 			database.endTransaction();
 			close();
@@ -64,15 +186,19 @@ public abstract class LSController {
 	 *            an array of the {@link LSObject}s to save
 	 */
 	protected <T extends LSObject> void saveMany(LSTable<T> table, T[] objects) {
-		open();
+		open(table);
 		database.beginTransaction();
 		try {
-			for (T object : objects) {
-				database.insert(table.getName(), null, table.createRow(object));
+			long[] rows = new long[objects.length];
+			for (int i = 0; i < objects.length; i++) {
+				rows[i] = database.insert(table.getName(), null,
+						offload(table, table.createRow(objects[i])));
 			}
+			refreshCaches(table, rows);
 			database.setTransactionSuccessful();
 		} catch (Exception e) {
 			e.printStackTrace();
+			dropCaches(table);
 		} finally {
 			database.endTransaction();
 			close();
@@ -103,25 +229,35 @@ public abstract class LSController {
 	 */
 	protected <T extends LSObject> ArrayList<T> find(LSTable<T> table,
 			String where, String orderBy, String limit) {
-		open();
-		Cursor cursor = database.query(false, table.getName(), null, where,
-				null, null, null, orderBy, limit);
+		return find(table, where, orderBy, limit, null);
+	}
+
+	/**
+	 * {@link #find} which also collects the values of each row found, in the
+	 * same order as the objects, for callers which need to compare rows. Rows
+	 * are always read from the database when they are collected
+	 */
+	<T extends LSObject> ArrayList<T> find(LSTable<T> table, String where,
+			String orderBy, String limit, List<ContentValues> rows) {
+		if (rows == null && where == null && orderBy == null && limit == null) {
+			LSLongMap<T> mirror = loadedMirror(table);
+			if (mirror != null)
+				return mirrored(mirror);
+		}
+		open(table);
+		long started = System.nanoTime();
+		Cursor cursor = database.query(false, table.getName(),
+				table.getProjection(), live(table, where), null, null, null,
+				orderBy, limit);
 		cursor.getCount();
+		recordQuery(table, where, orderBy, System.nanoTime() - started);
 		ArrayList<T> objects = new ArrayList<T>();
 
 		if (cursor.moveToFirst()) {
 			do {
-				ContentValues values = new ContentValues();
-				Iterator<Entry<String, String>> iterator = table.getColumns()
-						.entrySet().iterator();
-
-				while (iterator.hasNext()) {
-					Map.Entry<String, String> column = (Entry<String, String>) iterator
-							.next();
-					int index = cursor.getColumnIndex(column.getKey());
-					values.putAll(columnContentValue(column.getKey(),
-							column.getValue(), cursor, index));
-				}
+				ContentValues values = rowValues(table, cursor);
+				if (rows != null)
+					rows.add(values);
 				objects.add(table.out(values));
 			} while (cursor.moveToNext());
 		}
@@ -146,26 +282,34 @@ public abstract class LSController {
 	 * @return A {@link LSObject} that matches the criteria
 	 */
 	protected <T extends LSObject> T findOne(LSTable<T> table, String where) {
-		open();
-		Cursor cursor = database.query(false, table.getName(), null, where,
-				null, null, null, null, "1");
+		Matcher id = where == null ? null : WHERE_ID.matcher(where.trim());
+		if (id != null && id.matches()) {
+			LSLongMap<T> mirror = loadedMirror(table);
+			if (mirror != null)
+				return mirror.get(Long.parseLong(id.group(1)));
+		}
+		Matcher equals = where == null ? null : WHERE_EQUALS.matcher(where
+				.trim());
+		if (equals != null && equals.matches()
+				&& table.isIndexed(equals.group(1))) {
+			try {
+				return findIndexed(table, equals.group(1), equals.group(2));
+			} catch (NumberFormatException e) {
+				// Not an integer, so leave the comparison to SQLite
+			}
+		}
+		open(table);
+		long started = System.nanoTime();
+		Cursor cursor = database.query(false, table.getName(),
+				table.getProjection(), live(table, where), null, null, null,
+				null, "1");
 
 		cursor.getCount();
+		recordQuery(table, where, null, System.nanoTime() - started);
 		T object = null;
 
 		if (cursor.moveToFirst()) {
-			ContentValues values = new ContentValues();
-			Iterator<Entry<String, String>> iterator = table.getColumns()
-					.entrySet().iterator();
-
-			while (iterator.hasNext()) {
-				Map.Entry<String, String> column = (Entry<String, String>) iterator
-						.next();
-				int index = cursor.getColumnIndex(column.getKey());
-				values.putAll(columnContentValue(column.getKey(),
-						column.getValue(), cursor, index));
-			}
-			object = table.out(values);
+			object = table.out(rowValues(table, cursor));
 		}
 		cursor.close();
 		close();
@@ -173,6 +317,77 @@ public abstract class LSController {
 		return object;
 	}
 
+	/**
+	 * Finds {@link LSObject}s within a {@link LSTable} using several threads.
+	 * The {@code _id}s of the table are split into one range per thread, each
+	 * of which is queried on its own read-only connection and mapped through
+	 * {@link LSTable#out} in parallel. Worth it for scans of large tables;
+	 * {@link LSTable#out} must be safe to call from several threads at once.
+	 * In-memory tables can't be read from other connections, so they are
+	 * found with {@link #find} instead
+	 * 
+	 * @param table
+	 *            the {@link LSTable} in which to search for the objects
+	 * @param where
+	 *            A filter declaring which rows to return, formatted as an SQL
+	 *            WHERE clause (excluding the WHERE itself). Passing
+	 *            {@code null} will return all rows for the given table.
+	 * @param threads
+	 *            How many ranges to split the table into, normally the number
+	 *            of cores
+	 * @param ordered
+	 *            Whether the objects must be returned in {@code _id} order
+	 * @return An {@link ArrayList} of {@link LSObjects} that match the criteria
+	 */
+	protected <T extends LSObject> ArrayList<T> findParallel(
+			final LSTable<T> table, final String where, int threads,
+			final boolean ordered) {
+		if (threads < 2 || table.getStorageMode() == LSTable.STORAGE_MEMORY)
+			return find(table, where, ordered ? LSObject._ID : null, null);
+
+		open(table);
+		Cursor cursor = database.rawQuery("SELECT min(" + LSObject._ID
+				+ "), max(" + LSObject._ID + ") FROM " + table.getName(), null);
+		boolean empty = !cursor.moveToFirst() || cursor.isNull(0);
+		long min = empty ? 0 : cursor.getLong(0);
+		long max = empty ? 0 : cursor.getLong(1);
+		cursor.close();
+		close();
+		if (empty)
+			return new ArrayList<T>();
+
+		final String path = context.getDatabasePath(lsDatabase.getDbName())
+				.getPath();
+		long step = (max - min) / threads + 1;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<ArrayList<T>>> ranges = new ArrayList<Future<ArrayList<T>>>();
+		try {
+			for (long start = min; start <= max; start += step) {
+				final long from = start;
+				final long to = Math.min(start + step - 1, max);
+				ranges.add(executor.submit(new Callable<ArrayList<T>>() {
+					@Override
+					public ArrayList<T> call() {
+						return findRange(path, table, where, from, to, ordered);
+					}
+				}));
+			}
+
+			ArrayList<T> objects = new ArrayList<T>();
+			for (Future<ArrayList<T>> range : ranges) {
+				objects.addAll(range.get());
+			}
+			return objects;
+		} catch (ExecutionException e) {
+			throw new SQLException(e.getCause().toString());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException(e.toString());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
 	/**
 	 * Helper method to get all {@link LSObject}s from a {@link LSTable}. Same
 	 * as calling {@code find(table, null, null, null)}
@@ -193,27 +408,16 @@ public abstract class LSController {
 	 * @return A random {@link LSObject}
 	 */
 	protected <T extends LSObject> T findRandom(LSTable<T> table) {
-		open();
-		Cursor cursor = database.query(table.getName()
-				+ " Order BY RANDOM() LIMIT 1", new String[] { "*" }, null,
-				null, null, null, null);
+		open(table);
+		Cursor cursor = database.query(table.getName(),
+				table.getProjection(), live(table, null), null, null, null,
+				"RANDOM()", "1");
 
 		cursor.getCount();
 		T object = null;
 
 		if (cursor.moveToFirst()) {
-			ContentValues values = new ContentValues();
-			Iterator<Entry<String, String>> iterator = table.getColumns()
-					.entrySet().iterator();
-
-			while (iterator.hasNext()) {
-				Map.Entry<String, String> column = (Entry<String, String>) iterator
-						.next();
-				int index = cursor.getColumnIndex(column.getKey());
-				values.putAll(columnContentValue(column.getKey(),
-						column.getValue(), cursor, index));
-			}
-			object = table.out(values);
+			object = table.out(rowValues(table, cursor));
 		}
 		cursor.close();
 		close();
@@ -238,14 +442,18 @@ public abstract class LSController {
 	 */
 	protected <T extends LSObject> int update(LSTable<T> table,
 			ContentValues values, String where) {
-		open();
+		open(table);
 		database.beginTransaction();
 		int affected = 0;
 		try {
-			affected = database.update(table.getName(), values, where, null);
+			long[] ids = cachedIds(table, where);
+			affected = updateRows(table, offload(table, table.compress(values)),
+					live(table, where), null);
+			refreshCaches(table, ids);
 			database.setTransactionSuccessful();
 		} catch (Exception e) {
 			e.printStackTrace();
+			dropCaches(table);
 		} finally {
 			database.endTransaction();
 			close();
@@ -253,6 +461,78 @@ public abstract class LSController {
 		return affected;
 	}
 
+	/**
+	 * Updates a single record only if nobody else has since it was read, by
+	 * checking its version (see {@link Column#version}) in the same statement
+	 * that writes it. Concurrent writers never block one another; the loser
+	 * gets a {@link LSUpdateResult#CONFLICT} with the record as it is now, and
+	 * can merge and try again with the version it returns
+	 * 
+	 * @param table
+	 *            The versioned {@link LSTable} to update
+	 * @param id
+	 *            The {@code _id} of the record
+	 * @param version
+	 *            The version the record was at when it was read
+	 * @param values
+	 *            A set of {@link ContentValues} to update in the record. Any
+	 *            value for the version column is ignored
+	 * @return A {@link LSUpdateResult} saying whether the record was updated
+	 * @throws IllegalArgumentException
+	 *             if the table has no version column
+	 */
+	protected <T extends LSObject> LSUpdateResult<T> updateVersioned(
+			LSTable<T> table, long id, long version, ContentValues values) {
+		String column = table.getVersionColumn();
+		if (column == null)
+			throw new IllegalArgumentException(table.getName()
+					+ " has no version column");
+		values = new ContentValues(values);
+		values.put(column, version + 1);
+
+		LSUpdateResult<T> result = new LSUpdateResult<T>(
+				LSUpdateResult.FAILED, -1, null);
+		open(table);
+		database.beginTransaction();
+		try {
+			long[] ids = { id };
+			int affected = database.update(table.getName(),
+					offload(table, table.compress(values)),
+					live(table, LSObject._ID + " = ? AND COALESCE(" + column
+							+ ", 0) = CAST(? AS INTEGER)"),
+					new String[] { Long.toString(id), Long.toString(version) });
+			if (affected > 0) {
+				refreshCaches(table, ids);
+				result = new LSUpdateResult<T>(LSUpdateResult.UPDATED,
+						version + 1, null);
+			} else {
+				Cursor cursor = database.query(table.getName(),
+						table.getProjection(),
+						live(table, LSObject._ID + " = ?"),
+						new String[] { Long.toString(id) }, null, null, null);
+				if (cursor.moveToFirst()) {
+					ContentValues current = rowValues(table, cursor);
+					Long currentVersion = current.getAsLong(column);
+					result = new LSUpdateResult<T>(LSUpdateResult.CONFLICT,
+							currentVersion == null ? 0 : currentVersion,
+							table.out(current));
+				} else {
+					result = new LSUpdateResult<T>(LSUpdateResult.NOT_FOUND,
+							-1, null);
+				}
+				cursor.close();
+			}
+			database.setTransactionSuccessful();
+		} catch (Exception e) {
+			e.printStackTrace();
+			dropCaches(table);
+		} finally {
+			database.endTransaction();
+			close();
+		}
+		return result;
+	}
+
 	/**
 	 * Deletes a record (or records) from a table
 	 * 
@@ -268,13 +548,103 @@ public abstract class LSController {
 	 */
 	protected <T extends LSObject> int delete(LSTable<T> table, String where) {
 		int deleted = 0;
-		open();
+		open(table);
+		database.beginTransaction();
+		try {
+			long[] ids = cachedIds(table, where);
+			if (table.isSoftDelete())
+				deleted = updateRows(table, tombstone(),
+						live(table, where), null);
+			else
+				deleted = database.delete(table.getName(), where, null);
+			evictCaches(table, ids);
+			database.setTransactionSuccessful();
+		} catch (Exception e) {
+			e.printStackTrace();
+			dropCaches(table);
+		} finally {
+			database.endTransaction();
+			close();
+		}
+		return deleted;
+	}
+
+	/**
+	 * Updates every record in a table whose {@code _id} is in the given array.
+	 * The ids are split into IN-lists no larger than SQLite's bound parameter
+	 * limit and all of them are updated within a single transaction
+	 * 
+	 * @param table
+	 *            The {@link LSTable} to update
+	 * @param ids
+	 *            The {@code _id}s of the records to update
+	 * @param values
+	 *            A set of {@link ContentValues} to update in each record
+	 * @return The number of records changed, as an {@code int}. If an error
+	 *         occurs nothing is changed and 0 is returned
+	 */
+	protected <T extends LSObject> int updateByIds(LSTable<T> table,
+			long[] ids, ContentValues values) {
+		int batch = MAX_SQL_VARIABLES - values.size();
+		if (ids.length == 0 || batch < 1)
+			return 0;
+		int affected = 0;
+		open(table);
+		database.beginTransaction();
+		try {
+			values = offload(table, table.compress(values));
+			for (int start = 0; start < ids.length; start += batch) {
+				String[] args = idArgs(ids, start, batch);
+				affected += updateRows(table, values,
+						live(table, whereIdIn(args.length)), args);
+			}
+			refreshCaches(table, ids);
+			database.setTransactionSuccessful();
+		} catch (Exception e) {
+			e.printStackTrace();
+			dropCaches(table);
+			affected = 0;
+		} finally {
+			database.endTransaction();
+			close();
+		}
+		return affected;
+	}
+
+	/**
+	 * Deletes every record from a table whose {@code _id} is in the given
+	 * array. The ids are split into IN-lists no larger than SQLite's bound
+	 * parameter limit and all of them are deleted within a single transaction
+	 * 
+	 * @param table
+	 *            The {@link LSTable} to delete from
+	 * @param ids
+	 *            The {@code _id}s of the records to delete
+	 * @return The number of records deleted, as an {@code int}. If an error
+	 *         occurs nothing is deleted and 0 is returned
+	 */
+	protected <T extends LSObject> int deleteByIds(LSTable<T> table, long[] ids) {
+		if (ids.length == 0)
+			return 0;
+		int deleted = 0;
+		open(table);
 		database.beginTransaction();
 		try {
-			deleted = database.delete(table.getName(), where, null);
+			for (int start = 0; start < ids.length; start += MAX_SQL_VARIABLES) {
+				String[] args = idArgs(ids, start, MAX_SQL_VARIABLES);
+				if (table.isSoftDelete())
+					deleted += updateRows(table, tombstone(),
+							live(table, whereIdIn(args.length)), args);
+				else
+					deleted += database.delete(table.getName(),
+							whereIdIn(args.length), args);
+			}
+			evictCaches(table, ids);
 			database.setTransactionSuccessful();
 		} catch (Exception e) {
 			e.printStackTrace();
+			dropCaches(table);
+			deleted = 0;
 		} finally {
 			database.endTransaction();
 			close();
@@ -292,6 +662,536 @@ public abstract class LSController {
 		delete(table, null);
 	}
 
+	/**
+	 * Opens a BLOB column of a single record for reading. Values stored in the
+	 * row are read a chunk at a time, so they never have to fit in a cursor
+	 * window; offloaded values are read straight from their file. This is the
+	 * only way to read a lazy column (see {@link Column#lazy})
+	 * 
+	 * @param table
+	 *            The {@link LSTable} the record is in
+	 * @param column
+	 *            The BLOB column to read
+	 * @param id
+	 *            The {@code _id} of the record
+	 * @return An {@link InputStream} of the value, or {@code null} if the
+	 *         record doesn't exist or the value is NULL
+	 * @throws IOException
+	 *             if an offloaded file can't be opened
+	 */
+	protected <T extends LSObject> InputStream openBlob(LSTable<T> table,
+			String column, long id) throws IOException {
+		open(table);
+		Cursor cursor = database.rawQuery("SELECT length(CAST(" + column
+				+ " AS BLOB)), CASE WHEN typeof(" + column + ")='text' THEN " + column
+				+ " END FROM " + table.getName() + " WHERE " + LSObject._ID
+				+ "=?", new String[] { Long.toString(id) });
+		long length = -1L;
+		String reference = null;
+		if (cursor.moveToFirst() && !cursor.isNull(0)) {
+			length = cursor.getLong(0);
+			reference = cursor.getString(1);
+		}
+		cursor.close();
+		close();
+
+		if (length < 0)
+			return null;
+		InputStream in;
+		if (reference != null && reference.startsWith(BLOB_FILE_PREFIX))
+			in = new FileInputStream(new File(blobDirectory(),
+					reference.substring(BLOB_FILE_PREFIX.length())));
+		else
+			in = new BlobInputStream(table, column, id, length);
+		return table.isCompressed(column) ? LSCompression.decompressing(in)
+				: in;
+	}
+
+	/**
+	 * Deletes offloaded BLOB files (see {@link Column#offload}) which are no
+	 * longer referenced by any row in the database. Files aren't deleted along
+	 * with their rows because identical values share a file
+	 * 
+	 * @return The number of files deleted
+	 */
+	protected int purgeBlobFiles() {
+		File[] files = blobDirectory().listFiles();
+		if (files == null)
+			return 0;
+		Set<String> referenced = new HashSet<String>();
+		for (LSTable<LSObject> table : lsDatabase.tables()) {
+			open(table);
+			for (String column : table.getColumns().keySet()) {
+				if (table.getOffloadThreshold(column) == 0)
+					continue;
+				Cursor cursor = database.rawQuery("SELECT " + column
+						+ " FROM " + table.getName() + " WHERE typeof("
+						+ column + ")='text'", null);
+				while (cursor.moveToNext()) {
+					referenced.add(cursor.getString(0).substring(
+							BLOB_FILE_PREFIX.length()));
+				}
+				cursor.close();
+			}
+			close();
+		}
+
+		int deleted = 0;
+		for (File file : files) {
+			if (!referenced.contains(file.getName()) && file.delete())
+				deleted++;
+		}
+		return deleted;
+	}
+
+	/**
+	 * Writes every row of a table to a stream, a cell at a time, without
+	 * creating any {@link LSObject}s. Values are written exactly as stored, so
+	 * compressed columns are exported as-is, except offloaded values (see
+	 * {@link Column#offload}), which are read from their files so the stream
+	 * doesn't depend on them. The {@code _id} column is exported first, so
+	 * references to the rows survive a restore
+	 * 
+	 * @param table
+	 *            The {@link LSTable} to export
+	 * @param out
+	 *            The stream to write to. It is flushed but not closed
+	 * @param format
+	 *            {@link #FORMAT_BINARY} or {@link #FORMAT_CSV}
+	 * @return The number of rows exported
+	 * @throws IOException
+	 *             if the stream can't be written to
+	 */
+	protected <T extends LSObject> int exportTable(LSTable<T> table,
+			OutputStream out, int format) throws IOException {
+		List<String> names = new ArrayList<String>();
+		names.add(LSObject._ID);
+		names.addAll(table.getColumns().keySet());
+		String[] columns = names.toArray(new String[names.size()]);
+		LSTransfer.RowWriter writer = LSTransfer.writer(format, out, columns);
+		StringBuilder select = new StringBuilder("SELECT ");
+		for (int i = 0; i < columns.length; i++) {
+			if (i > 0)
+				select.append(", ");
+			select.append("typeof(").append(columns[i]).append("), ")
+					.append(columns[i]);
+		}
+		select.append(" FROM ").append(table.getName());
+		if (table.isSoftDelete())
+			select.append(" WHERE ").append(live(table, null));
+		select.append(" ORDER BY ").append(LSObject._ID);
+
+		int rows = 0;
+		open(table);
+		try {
+			Cursor cursor = database.rawQuery(select.toString(), null);
+			try {
+				while (cursor.moveToNext()) {
+					for (int i = 0; i < columns.length; i++) {
+						String reference = offloadReference(table, columns[i],
+								cursor, i * 2);
+						if (reference != null)
+							writer.writeBlob(readBlobFile(reference));
+						else
+							writeCell(writer, cursor, i * 2);
+					}
+					writer.endRow();
+					rows++;
+				}
+			} finally {
+				cursor.close();
+			}
+		} finally {
+			close();
+		}
+		writer.finish();
+		return rows;
+	}
+
+	/**
+	 * Inserts rows from a stream written by {@link #exportTable} into a
+	 * table. Values are bound straight from the stream to a single compiled
+	 * INSERT statement and committed in batches, so memory use doesn't grow
+	 * with the size of the stream. If an error occurs, the rows in batches
+	 * which have already been committed are kept. Rows keep the {@code _id}s
+	 * in the stream, so importing into a table which already has any of them
+	 * fails. Values of offloaded columns over their threshold are written to
+	 * files again
+	 * 
+	 * @param table
+	 *            The {@link LSTable} to import into. Every column in the
+	 *            stream must be one of its columns, or {@code _id}
+	 * @param in
+	 *            The stream to read from. It is not closed
+	 * @param format
+	 *            {@link #FORMAT_BINARY} or {@link #FORMAT_CSV}
+	 * @return The number of rows imported
+	 * @throws IOException
+	 *             if the stream can't be read or isn't in the given format
+	 */
+	protected <T extends LSObject> int importTable(final LSTable<T> table,
+			InputStream in, int format) throws IOException {
+		LSTransfer.RowReader reader = LSTransfer.reader(format, in,
+				new LSTransfer.BlobBinder() {
+					@Override
+					public void bindBlob(SQLiteStatement statement, int index,
+							String column, byte[] value) throws IOException {
+						int threshold = table.getOffloadThreshold(column);
+						if (threshold > 0 && value.length > threshold)
+							statement.bindString(index, BLOB_FILE_PREFIX
+									+ writeBlobFile(value));
+						else
+							statement.bindBlob(index, value);
+					}
+				});
+		String[] columns = reader.columns();
+		StringBuilder insert = new StringBuilder("INSERT INTO ")
+				.append(table.getName()).append("(");
+		StringBuilder params = new StringBuilder();
+		for (int i = 0; i < columns.length; i++) {
+			if (!columns[i].equals(LSObject._ID)
+					&& !table.getColumns().containsKey(columns[i]))
+				throw new IOException("Unknown column " + columns[i]);
+			if (i > 0) {
+				insert.append(", ");
+				params.append(", ");
+			}
+			insert.append(columns[i]);
+			params.append('?');
+		}
+		insert.append(") VALUES (").append(params).append(")");
+
+		int rows = 0;
+		dropCaches(table);
+		open(table);
+		SQLiteStatement statement = null;
+		try {
+			statement = database.compileStatement(insert.toString());
+			boolean more = true;
+			while (more) {
+				database.beginTransaction();
+				try {
+					for (int batch = 0; batch < IMPORT_BATCH_SIZE; batch++) {
+						statement.clearBindings();
+						more = reader.readRow(statement);
+						if (!more)
+							break;
+						statement.executeInsert();
+						rows++;
+					}
+					database.setTransactionSuccessful();
+				} finally {
+					database.endTransaction();
+				}
+			}
+		} finally {
+			if (statement != null)
+				statement.close();
+			close();
+		}
+		return rows;
+	}
+
+	/**
+	 * Reads a table's change log from a given point (see
+	 * {@link LSTable#isChangeLogged}), so only the rows which changed need
+	 * sending anywhere. Read in pages: pass the sequence number of the last
+	 * {@link LSChange} returned to get the next page, until there are none
+	 * left
+	 * 
+	 * @param table
+	 *            The {@link LSTable} to read the changes of
+	 * @param seq
+	 *            The sequence number to read from, exclusive. {@code 0} reads
+	 *            the whole log
+	 * @param limit
+	 *            The most changes to return
+	 * @return A List of {@link LSChange}s in sequence order, empty only if
+	 *         nothing has changed
+	 * @throws IllegalArgumentException
+	 *             if the table has no change log
+	 */
+	protected <T extends LSObject> ArrayList<LSChange<T>> changesSince(
+			LSTable<T> table, long seq, int limit) {
+		if (!table.isChangeLogged())
+			throw new IllegalArgumentException(table.getName()
+					+ " has no change log");
+		ArrayList<LSChange<T>> changes = new ArrayList<LSChange<T>>();
+		open(table);
+		try {
+			Cursor cursor = database.query(table.getName()
+					+ LSTable.CHANGES_SUFFIX, new String[] { "seq", "row_id",
+					"operation" }, "seq > ?",
+					new String[] { Long.toString(seq) }, null, null, "seq",
+					Integer.toString(limit));
+			long[] seqs = new long[cursor.getCount()];
+			long[] ids = new long[seqs.length];
+			int[] operations = new int[seqs.length];
+			for (int i = 0; cursor.moveToNext(); i++) {
+				seqs[i] = cursor.getLong(0);
+				ids[i] = cursor.getLong(1);
+				operations[i] = cursor.getInt(2);
+			}
+			cursor.close();
+
+			LSLongMap<T> objects = new LSLongMap<T>();
+			for (int start = 0; start < ids.length; start += MAX_SQL_VARIABLES) {
+				String[] args = idArgs(ids, start, MAX_SQL_VARIABLES);
+				cursor = database.query(table.getName(),
+						table.getProjection(),
+						live(table, whereIdIn(args.length)), args, null, null,
+						null);
+				while (cursor.moveToNext()) {
+					ContentValues values = rowValues(table, cursor);
+					objects.put(values.getAsLong(LSObject._ID),
+							table.out(values));
+				}
+				cursor.close();
+			}
+			for (int i = 0; i < seqs.length; i++) {
+				changes.add(new LSChange<T>(seqs[i], ids[i], operations[i],
+						operations[i] == LSChange.DELETE ? null : objects
+								.get(ids[i])));
+			}
+		} finally {
+			close();
+		}
+		return changes;
+	}
+
+	/**
+	 * Removes deletions from a table's change log once everything reading it
+	 * has seen them. The log already keeps only the latest change to each
+	 * row, so deletions of rows which are long gone are all that build up
+	 * 
+	 * @param table
+	 *            The {@link LSTable} to compact the change log of
+	 * @param seq
+	 *            The sequence number every reader has got to, inclusive
+	 * @return The number of log entries removed
+	 * @throws IllegalArgumentException
+	 *             if the table has no change log
+	 */
+	protected <T extends LSObject> int compactChanges(LSTable<T> table,
+			long seq) {
+		if (!table.isChangeLogged())
+			throw new IllegalArgumentException(table.getName()
+					+ " has no change log");
+		int removed = 0;
+		open(table);
+		try {
+			removed = database.delete(table.getName() + LSTable.CHANGES_SUFFIX,
+					"seq <= ? AND operation = " + LSChange.DELETE,
+					new String[] { Long.toString(seq) });
+		} catch (Exception e) {
+			e.printStackTrace();
+		} finally {
+			close();
+		}
+		return removed;
+	}
+
+	/**
+	 * Tidies the database file: removes soft deleted rows older than a given
+	 * age (see {@link LSTable#isSoftDelete}) in small batches, returns free
+	 * pages to the file system with incremental vacuum and refreshes the
+	 * query planner's statistics. Tombstones in memory tables are purged
+	 * too. The first run switches the database to incremental auto vacuum,
+	 * which needs a full VACUUM. Runs on the controller's own connection, so
+	 * calls from other threads wait for each step instead of failing while
+	 * the file is locked. It can be called from a background thread; see
+	 * {@link #startMaintenance}
+	 * 
+	 * @param tombstoneAgeMillis
+	 *            How long soft deleted rows are kept for, in milliseconds
+	 * @return A {@link LSMaintenanceReport} of what was done
+	 */
+	protected LSMaintenanceReport runMaintenance(long tombstoneAgeMillis) {
+		long started = System.currentTimeMillis();
+		File file = context.getDatabasePath(lsDatabase.getDbName());
+		long sizeBefore = file.length();
+		int purged = 0;
+		SQLiteDatabase db;
+		synchronized (dbHelper) {
+			maintaining = true;
+			db = dbHelper.getWritableDatabase();
+		}
+		try {
+			String[] cutoff = { Long.toString(started - tombstoneAgeMillis) };
+			for (LSTable<LSObject> table : lsDatabase.tables()) {
+				if (!table.isSoftDelete())
+					continue;
+				if (table.getStorageMode() != LSTable.STORAGE_MEMORY)
+					purged += purgeTombstones(db, table, cutoff);
+				else if (memoryDatabase != null)
+					purged += purgeTombstones(memoryDatabase, table, cutoff);
+			}
+
+			if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) != 2) {
+				db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+				db.execSQL("VACUUM");
+			} else {
+				exhaust(db, "PRAGMA incremental_vacuum");
+			}
+			db.execSQL("ANALYZE");
+			exhaust(db, "PRAGMA optimize");
+		} finally {
+			synchronized (dbHelper) {
+				maintaining = false;
+				dbHelper.close();
+			}
+		}
+		return new LSMaintenanceReport(purged, sizeBefore, file.length(),
+				System.currentTimeMillis() - started);
+	}
+
+	/**
+	 * Removes a soft deleted table's rows which were deleted before a cutoff,
+	 * {@link #PURGE_BATCH_SIZE} rows per transaction
+	 * 
+	 * @return The number of rows removed
+	 */
+	private int purgeTombstones(SQLiteDatabase db, LSTable<?> table,
+			String[] cutoff) {
+		String batch = LSObject._ID + " IN (SELECT " + LSObject._ID + " FROM "
+				+ table.getName() + " WHERE " + LSTable._DELETED + " < ? LIMIT "
+				+ PURGE_BATCH_SIZE + ")";
+		int purged = 0;
+		int deleted;
+		do {
+			db.beginTransaction();
+			try {
+				deleted = db.delete(table.getName(), batch, cutoff);
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+			purged += deleted;
+		} while (deleted == PURGE_BATCH_SIZE);
+		return purged;
+	}
+
+	/**
+	 * Runs {@link #runMaintenance} on a background thread whenever the
+	 * controller has been idle for a while since it was last used. Each
+	 * {@link LSMaintenanceReport} is passed to {@link #onMaintenance}. Any
+	 * maintenance already started is stopped first
+	 * 
+	 * @param idleMillis
+	 *            How long the controller must go unused, in milliseconds
+	 * @param tombstoneAgeMillis
+	 *            How long soft deleted rows are kept for, in milliseconds
+	 */
+	protected synchronized void startMaintenance(final long idleMillis,
+			final long tombstoneAgeMillis) {
+		stopMaintenance();
+		maintenance = Executors.newSingleThreadScheduledExecutor();
+		maintenance.scheduleWithFixedDelay(new Runnable() {
+			private long maintainedAt;
+
+			@Override
+			public void run() {
+				long used = lastUsed;
+				if (used <= maintainedAt
+						|| System.currentTimeMillis() - used < idleMillis)
+					return;
+				maintainedAt = used;
+				try {
+					onMaintenance(runMaintenance(tombstoneAgeMillis));
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}, idleMillis, idleMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops the maintenance started by {@link #startMaintenance}
+	 */
+	protected synchronized void stopMaintenance() {
+		if (maintenance != null) {
+			maintenance.shutdown();
+			maintenance = null;
+		}
+	}
+
+	/**
+	 * Called on the maintenance thread after each run started by
+	 * {@link #startMaintenance}. Override to record the metrics
+	 * 
+	 * @param report
+	 *            What the run did
+	 */
+	protected void onMaintenance(LSMaintenanceReport report) {
+	}
+
+	/**
+	 * Starts collecting stats of the queries made by {@link #find} and
+	 * {@link #findOne}. Queries are grouped by shape, the same table, WHERE
+	 * and ORDER BY with any literal values left out, and each group counts
+	 * its queries and their time. SQLite's query plan is read once per
+	 * shape, when it is first seen, so diagnostics cost little more than a
+	 * clock read per query and can be left on under load. Queries answered
+	 * from a mirror or in-process index never reach SQLite and aren't
+	 * counted
+	 * 
+	 * @param largeTableRows
+	 *            How many rows a table needs before scanning all of it is
+	 *            flagged as a full scan
+	 */
+	protected void startDiagnostics(long largeTableRows) {
+		this.largeTableRows = largeTableRows;
+		if (queryStats == null)
+			queryStats = new LinkedHashMap<String, LSQueryStats>();
+	}
+
+	/**
+	 * Stops collecting query stats and forgets those collected
+	 */
+	protected void stopDiagnostics() {
+		queryStats = null;
+	}
+
+	/**
+	 * Gets the stats collected since {@link #startDiagnostics}
+	 * 
+	 * @return A List of {@link LSQueryStats}, one per query shape, most total
+	 *         time first
+	 */
+	protected ArrayList<LSQueryStats> getQueryStats() {
+		Map<String, LSQueryStats> stats = queryStats;
+		if (stats == null)
+			return new ArrayList<LSQueryStats>();
+		ArrayList<LSQueryStats> toReturn;
+		synchronized (stats) {
+			toReturn = new ArrayList<LSQueryStats>(stats.values());
+		}
+		Collections.sort(toReturn, new Comparator<LSQueryStats>() {
+			@Override
+			public int compare(LSQueryStats a, LSQueryStats b) {
+				return Double.compare(b.getTotalMillis(), a.getTotalMillis());
+			}
+		});
+		return toReturn;
+	}
+
+	/**
+	 * Gets an index for each query shape which did a full scan (see
+	 * {@link #startDiagnostics}), in terms of the {@link Column}s in its WHERE
+	 * and ORDER BY clauses. Review them before adding any to
+	 * {@link LSDatabase#onUpgrade}; every index slows down writes
+	 * 
+	 * @return A List of CREATE INDEX statements, most costly queries first
+	 */
+	protected ArrayList<String> getIndexSuggestions() {
+		Set<String> suggestions = new LinkedHashSet<String>();
+		for (LSQueryStats stats : getQueryStats()) {
+			if (stats.getSuggestedIndex() != null)
+				suggestions.add(stats.getSuggestedIndex());
+		}
+		return new ArrayList<String>(suggestions);
+	}
+
 	/**
 	 * Helper to create a formatted WHERE string. In the format of
 	 * "{column}='{value}'"
@@ -334,40 +1234,717 @@ public abstract class LSController {
 		return where(column, value, "<");
 	}
 
-	private void open() throws SQLException {
-		database = dbHelper.getWritableDatabase();
+	private void open(LSTable<?> table) throws SQLException {
+		lastUsed = System.currentTimeMillis();
+		if (table.getStorageMode() != LSTable.STORAGE_MEMORY) {
+			database = dbHelper.getWritableDatabase();
+			return;
+		}
+		if (memoryDatabase == null) {
+			memoryDatabase = SQLiteDatabase.create(null);
+			for (LSTable<LSObject> memoryTable : lsDatabase.tables()) {
+				if (memoryTable.getStorageMode() != LSTable.STORAGE_MEMORY)
+					continue;
+				for (String statement : memoryTable.getCreateStatements()) {
+					memoryDatabase.execSQL(statement);
+				}
+			}
+		}
+		database = memoryDatabase;
 	}
 
+	/**
+	 * Closes the database file, unless {@link #runMaintenance} is using it.
+	 * The in-memory database is never closed, as its rows would be lost
+	 */
 	private void close() {
-		dbHelper.close();
+		if (database == memoryDatabase)
+			return;
+		synchronized (dbHelper) {
+			if (!maintaining)
+				dbHelper.close();
+		}
+	}
+
+	/**
+	 * Gets the mirror of a {@link LSTable#STORAGE_MIRRORED} table, reading
+	 * every row into it if it hasn't been read yet
+	 * 
+	 * @return The mirror, or {@code null} if the table isn't mirrored
+	 */
+	@SuppressWarnings("unchecked")
+	private <T extends LSObject> LSLongMap<T> loadedMirror(LSTable<T> table) {
+		if (table.getStorageMode() != LSTable.STORAGE_MIRRORED)
+			return null;
+		LSLongMap<T> mirror = (LSLongMap<T>) mirrors.get(table.getName());
+		if (mirror != null)
+			return mirror;
+
+		mirror = new LSLongMap<T>();
+		open(table);
+		Cursor cursor = database.query(table.getName(), table.getProjection(),
+				live(table, null), null, null, null, null);
+		int idIndex = cursor.getColumnIndex(LSObject._ID);
+		while (cursor.moveToNext()) {
+			mirror.put(cursor.getLong(idIndex),
+					table.out(rowValues(table, cursor)));
+		}
+		cursor.close();
+		close();
+		mirrors.put(table.getName(), mirror);
+		return mirror;
+	}
+
+	private <T extends LSObject> ArrayList<T> mirrored(LSLongMap<T> mirror) {
+		long[] ids = mirror.sortedKeys();
+		ArrayList<T> objects = new ArrayList<T>(ids.length);
+		for (long id : ids) {
+			objects.add(mirror.get(id));
+		}
+		return objects;
+	}
+
+	/**
+	 * Finds the objects in one {@code _id} range for {@link #findParallel},
+	 * on a connection of its own
+	 */
+	private <T extends LSObject> ArrayList<T> findRange(String path,
+			LSTable<T> table, String where, long from, long to, boolean ordered) {
+		String range = LSObject._ID + " BETWEEN " + from + " AND " + to;
+		if (where != null)
+			range += " AND (" + where + ")";
+		SQLiteDatabase reader = SQLiteDatabase.openDatabase(path, null,
+				SQLiteDatabase.OPEN_READONLY);
+		try {
+			Cursor cursor = reader.query(table.getName(),
+					table.getProjection(), live(table, range), null, null, null,
+					ordered ? LSObject._ID : null);
+			ArrayList<T> objects = new ArrayList<T>(cursor.getCount());
+			while (cursor.moveToNext()) {
+				objects.add(table.out(rowValues(table, cursor)));
+			}
+			cursor.close();
+			return objects;
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Finds an object through the in-process index of a column, reading the
+	 * index if it hasn't been read yet
+	 */
+	private <T extends LSObject> T findIndexed(LSTable<T> table,
+			String column, String value) {
+		LSIndex<T> index = loadedIndex(table);
+		long[] ids = index.lookup(column, value);
+		if (ids == null)
+			return null;
+		LSLongMap<T> mirror = loadedMirror(table);
+		if (mirror != null)
+			return mirror.get(ids[0]);
+		T object = index.object(ids[0]);
+		if (object == null) {
+			object = findOne(table, LSObject._ID + "=" + ids[0]);
+			if (object != null)
+				index.cache(ids[0], object);
+		}
+		return object;
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T extends LSObject> LSIndex<T> loadedIndex(LSTable<T> table) {
+		LSIndex<T> index = (LSIndex<T>) indexes.get(table.getName());
+		if (index != null)
+			return index;
+
+		index = new LSIndex<T>(table);
+		open(table);
+		addToIndex(table, index, null, null);
+		close();
+		indexes.put(table.getName(), index);
+		return index;
+	}
+
+	/**
+	 * Reads the indexed columns of the rows matching a WHERE clause into an
+	 * index. Must be called with the database open
+	 */
+	private <T extends LSObject> void addToIndex(LSTable<T> table,
+			LSIndex<T> index, String where, String[] args) {
+		List<String> columns = table.getIndexedColumns();
+		String[] projection = new String[columns.size() + 1];
+		projection[0] = LSObject._ID;
+		for (int i = 0; i < columns.size(); i++) {
+			projection[i + 1] = columns.get(i);
+		}
+		Cursor cursor = database.query(table.getName(), projection,
+				live(table, where), args, null, null, null);
+		while (cursor.moveToNext()) {
+			long id = cursor.getLong(0);
+			for (int i = 0; i < columns.size(); i++) {
+				if (cursor.isNull(i + 1))
+					continue;
+				String column = columns.get(i);
+				if (LSTable.INTEGER.equals(table.getColumns().get(column)))
+					index.add(id, column, cursor.getLong(i + 1));
+				else
+					index.add(id, column, cursor.getString(i + 1));
+			}
+		}
+		cursor.close();
+	}
+
+	/**
+	 * Gets the ids a write is about to change, if the table has a mirror or
+	 * index which needs to know. Must be called with the database open
+	 */
+	private <T extends LSObject> long[] cachedIds(LSTable<T> table,
+			String where) {
+		if (!mirrors.containsKey(table.getName())
+				&& !indexes.containsKey(table.getName()))
+			return null;
+		Cursor cursor = database.query(table.getName(),
+				new String[] { LSObject._ID }, live(table, where), null, null,
+				null, null);
+		long[] ids = new long[cursor.getCount()];
+		for (int i = 0; cursor.moveToNext(); i++) {
+			ids[i] = cursor.getLong(0);
+		}
+		cursor.close();
+		return ids;
+	}
+
+	/**
+	 * Re-reads rows into the table's mirror and index, if it has them. Must be
+	 * called with the database open
+	 */
+	@SuppressWarnings("unchecked")
+	private <T extends LSObject> void refreshCaches(LSTable<T> table,
+			long[] ids) {
+		if (ids == null)
+			return;
+		LSIndex<T> index = (LSIndex<T>) indexes.get(table.getName());
+		if (index != null) {
+			for (long id : ids) {
+				index.remove(id);
+			}
+			for (int start = 0; start < ids.length; start += MAX_SQL_VARIABLES) {
+				String[] args = idArgs(ids, start, MAX_SQL_VARIABLES);
+				addToIndex(table, index, whereIdIn(args.length), args);
+			}
+		}
+
+		LSLongMap<T> mirror = (LSLongMap<T>) mirrors.get(table.getName());
+		if (mirror == null)
+			return;
+		for (int start = 0; start < ids.length; start += MAX_SQL_VARIABLES) {
+			String[] args = idArgs(ids, start, MAX_SQL_VARIABLES);
+			Cursor cursor = database.query(table.getName(),
+					table.getProjection(), live(table, whereIdIn(args.length)),
+					args, null, null, null);
+			int idIndex = cursor.getColumnIndex(LSObject._ID);
+			while (cursor.moveToNext()) {
+				mirror.put(cursor.getLong(idIndex),
+						table.out(rowValues(table, cursor)));
+			}
+			cursor.close();
+		}
+	}
+
+	private <T extends LSObject> void evictCaches(LSTable<T> table,
+			long[] ids) {
+		if (ids == null)
+			return;
+		LSLongMap<? extends LSObject> mirror = mirrors.get(table.getName());
+		LSIndex<? extends LSObject> index = indexes.get(table.getName());
+		for (long id : ids) {
+			if (mirror != null)
+				mirror.remove(id);
+			if (index != null)
+				index.remove(id);
+		}
+	}
+
+	/**
+	 * Forgets a table's mirror and index, so they are read again when next
+	 * needed. Used when a write fails part way through
+	 */
+	private <T extends LSObject> void dropCaches(LSTable<T> table) {
+		mirrors.remove(table.getName());
+		indexes.remove(table.getName());
+	}
+
+	/**
+	 * Restricts a WHERE clause to rows which haven't been soft deleted, if the
+	 * table soft deletes
+	 */
+	private String live(LSTable<?> table, String where) {
+		if (!table.isSoftDelete())
+			return where;
+		String live = LSTable._DELETED + " IS NULL";
+		return where == null ? live : live + " AND (" + where + ")";
+	}
+
+	/**
+	 * Adds a query to the stats of its shape, explaining it first if the
+	 * shape is new. Does nothing unless diagnostics are on
+	 */
+	private void recordQuery(LSTable<?> table, String where, String orderBy,
+			long nanos) {
+		Map<String, LSQueryStats> stats = queryStats;
+		if (stats == null)
+			return;
+		String shape = where == null ? null : PARAMETER_LIST.matcher(
+				LITERAL.matcher(where).replaceAll("?")).replaceAll("?");
+		String key = table.getName() + '\n' + shape + '\n' + orderBy;
+		LSQueryStats entry;
+		synchronized (stats) {
+			entry = stats.get(key);
+			if (entry == null && stats.size() >= MAX_QUERY_SHAPES)
+				return;
+		}
+		if (entry == null) {
+			entry = explainQuery(table, where, shape, orderBy);
+			synchronized (stats) {
+				if (stats.containsKey(key))
+					entry = stats.get(key);
+				else
+					stats.put(key, entry);
+			}
+		}
+		entry.record(nanos);
+	}
+
+	private LSQueryStats explainQuery(LSTable<?> table, String where,
+			String shape, String orderBy) {
+		String name = table.getName();
+		String live = live(table, where);
+		String sql = "EXPLAIN QUERY PLAN SELECT * FROM " + name
+				+ (live == null ? "" : " WHERE " + live)
+				+ (orderBy == null ? "" : " ORDER BY " + orderBy);
+		StringBuilder plan = new StringBuilder();
+		boolean scan = false;
+		try {
+			Cursor cursor = database.rawQuery(sql, null);
+			while (cursor.moveToNext()) {
+				String detail = cursor.getString(cursor.getColumnCount() - 1);
+				if (plan.length() > 0)
+					plan.append('\n');
+				plan.append(detail);
+				// Older SQLite says "SCAN TABLE x", newer just "SCAN x"
+				String[] words = detail.split(" ");
+				scan |= words[0].equals("SCAN")
+						&& words.length > 1
+						&& (words[1].equals(name) || words[1].equals("TABLE")
+								&& words.length > 2 && words[2].equals(name));
+			}
+			cursor.close();
+		} catch (SQLException e) {
+			plan.append(e.toString());
+		}
+		// The largest _id is close enough to the row count, and free to read
+		boolean fullScan = scan
+				&& DatabaseUtils.longForQuery(database, "SELECT COALESCE(MAX("
+						+ LSObject._ID + "), 0) FROM " + name, null) >= largeTableRows;
+		return new LSQueryStats(name, shape, orderBy, plan.toString(),
+				fullScan, fullScan ? suggestIndex(table, shape, orderBy) : null);
+	}
+
+	/**
+	 * Picks the columns for an index which would serve a query: those
+	 * compared for equality, then the first compared with a range, or else
+	 * the ORDER BY columns
+	 */
+	private String suggestIndex(LSTable<?> table, String where, String orderBy) {
+		Set<String> columns = new LinkedHashSet<String>();
+		List<String> ranges = new ArrayList<String>();
+		if (where != null) {
+			Matcher condition = CONDITION.matcher(where);
+			while (condition.find()) {
+				String column = condition.group(1);
+				if (!table.getColumns().containsKey(column)
+						|| table.isCompressed(column))
+					continue;
+				String operator = condition.group(2).toUpperCase(
+						Locale.ENGLISH);
+				if (operator.startsWith("=") || operator.equals("IS")
+						|| operator.equals("IN"))
+					columns.add(column);
+				else
+					ranges.add(column);
+			}
+		}
+		ranges.removeAll(columns);
+		if (!ranges.isEmpty()) {
+			columns.add(ranges.get(0));
+		} else if (orderBy != null) {
+			for (String term : orderBy.split(",")) {
+				String column = term.trim().split("\\s+")[0];
+				if (table.getColumns().containsKey(column)
+						&& !table.isCompressed(column))
+					columns.add(column);
+			}
+		}
+		if (columns.isEmpty())
+			return null;
+
+		StringBuilder indexName = new StringBuilder(table.getName());
+		StringBuilder indexColumns = new StringBuilder();
+		for (String column : columns) {
+			indexName.append('_').append(column);
+			if (indexColumns.length() > 0)
+				indexColumns.append(", ");
+			indexColumns.append(column);
+		}
+		return "CREATE INDEX IF NOT EXISTS " + indexName + " ON "
+				+ table.getName() + "(" + indexColumns + ")";
+	}
+
+	/**
+	 * Steps through every row of a statement. Needed for pragmas such as
+	 * incremental_vacuum, which only do their work one row at a time
+	 */
+	private void exhaust(SQLiteDatabase db, String sql) {
+		Cursor cursor = db.rawQuery(sql, null);
+		while (cursor.moveToNext()) {
+		}
+		cursor.close();
+	}
+
+	/**
+	 * {@link SQLiteDatabase#update} which also adds one to the version of a
+	 * versioned table in the same statement, unless the values set it.
+	 * SQLiteDatabase can only set values, which would leave the bump to the
+	 * table's version trigger: a second write of every row, firing every
+	 * other trigger on the table again. Must be called within a transaction,
+	 * so the count of changed rows comes from the same connection
+	 */
+	private int updateRows(LSTable<?> table, ContentValues values,
+			String where, String[] args) {
+		String version = table.getVersionColumn();
+		if (version == null || values.containsKey(version))
+			return database.update(table.getName(), values, where, args);
+
+		StringBuilder sql = new StringBuilder("UPDATE ").append(
+				table.getName()).append(" SET ");
+		List<Object> bindings = new ArrayList<Object>();
+		for (Entry<String, Object> value : values.valueSet()) {
+			sql.append(value.getKey()).append(" = ?, ");
+			bindings.add(value.getValue());
+		}
+		sql.append(version).append(" = COALESCE(").append(version)
+				.append(", 0) + 1");
+		if (where != null)
+			sql.append(" WHERE ").append(where);
+
+		SQLiteStatement statement = database.compileStatement(sql.toString());
+		try {
+			int index = 1;
+			for (Object value : bindings) {
+				bind(statement, index++, value);
+			}
+			if (args != null) {
+				for (String arg : args) {
+					statement.bindString(index++, arg);
+				}
+			}
+			statement.execute();
+		} finally {
+			statement.close();
+		}
+		return (int) DatabaseUtils.longForQuery(database, "SELECT changes()",
+				null);
+	}
+
+	private void bind(SQLiteStatement statement, int index, Object value) {
+		if (value == null)
+			statement.bindNull(index);
+		else if (value instanceof Float || value instanceof Double)
+			statement.bindDouble(index, ((Number) value).doubleValue());
+		else if (value instanceof Number)
+			statement.bindLong(index, ((Number) value).longValue());
+		else if (value instanceof Boolean)
+			statement.bindLong(index, ((Boolean) value) ? 1 : 0);
+		else if (value instanceof byte[])
+			statement.bindBlob(index, (byte[]) value);
+		else
+			statement.bindString(index, value.toString());
+	}
+
+	private ContentValues tombstone() {
+		ContentValues values = new ContentValues();
+		values.put(LSTable._DELETED, System.currentTimeMillis());
+		return values;
 	}
 
 	private String where(String column, String value, String operator) {
 		return column + operator + "'" + value + "'";
 	}
 
-	private ContentValues columnContentValue(String column, String type,
-			Cursor cursor, int index) {
+	/**
+	 * Every full batch produces the same SQL, so SQLiteDatabase's compiled
+	 * statement cache reuses one statement for all but the last batch
+	 */
+	private String whereIdIn(int count) {
+		StringBuilder where = new StringBuilder(LSObject._ID + " IN (");
+		for (int i = 0; i < count; i++) {
+			if (i > 0)
+				where.append(',');
+			where.append('?');
+		}
+		return where.append(')').toString();
+	}
+
+	private String[] idArgs(long[] ids, int start, int batch) {
+		String[] args = new String[Math.min(batch, ids.length - start)];
+		for (int i = 0; i < args.length; i++) {
+			args[i] = Long.toString(ids[start + i]);
+		}
+		return args;
+	}
+
+	private <T extends LSObject> ContentValues rowValues(LSTable<T> table,
+			Cursor cursor) {
 		ContentValues values = new ContentValues();
-		if (type.equals(LSTable.NULL))
+		int idIndex = cursor.getColumnIndex(LSObject._ID);
+		if (idIndex >= 0)
+			values.put(LSObject._ID, cursor.getLong(idIndex));
+		Iterator<Entry<String, String>> iterator = table.getColumns()
+				.entrySet().iterator();
+
+		while (iterator.hasNext()) {
+			Map.Entry<String, String> column = (Entry<String, String>) iterator
+					.next();
+			int index = cursor.getColumnIndex(column.getKey());
+			if (index < 0)
+				continue; // Lazy column, not in the projection
+			putColumnValue(values, column.getKey(), column.getValue(),
+					table.isCompressed(column.getKey()), cursor, index);
+		}
+		return values;
+	}
+
+	private void putColumnValue(ContentValues values, String column,
+			String type, boolean compressed, Cursor cursor, int index) {
+		if (type.equals(LSTable.NULL) || cursor.isNull(index))
 			values.putNull(column);
+		else if (compressed && type.equals(LSTable.TEXT)) {
+			// Values under the threshold are stored as TEXT, and reading TEXT
+			// as a BLOB keeps its NUL terminator. Cursor.getType would tell
+			// them apart but needs API 11; UTF-8 never contains the
+			// compression header's 0xFF, so the bytes do instead
+			byte[] bytes = cursor.getBlob(index);
+			if (LSCompression.isCompressed(bytes))
+				values.put(column, utf8(LSCompression.decompress(bytes)));
+			else
+				values.put(column, cursor.getString(index));
+		}
+		else if (compressed)
+			values.put(column, LSCompression.decompress(cursor.getBlob(index)));
 		else if (type.equals(LSTable.INTEGER))
-			values.put(column, cursor.getInt(index));
+			values.put(column, cursor.getLong(index));
 		else if (type.equals(LSTable.REAL))
 			values.put(column, cursor.getDouble(index));
 		else if (type.equals(LSTable.TEXT))
 			values.put(column, cursor.getString(index));
 		else if (type.equals(LSTable.BLOB))
 			values.put(column, cursor.getBlob(index));
+	}
 
-		return values;
+	private void writeCell(LSTransfer.RowWriter writer, Cursor cursor,
+			int index) throws IOException {
+		String type = cursor.getString(index);
+		int value = index + 1;
+		if ("integer".equals(type))
+			writer.writeLong(cursor.getLong(value));
+		else if ("real".equals(type))
+			writer.writeDouble(cursor.getDouble(value));
+		else if ("text".equals(type))
+			writer.writeText(cursor.getString(value));
+		else if ("blob".equals(type))
+			writer.writeBlob(cursor.getBlob(value));
+		else
+			writer.writeNull();
+	}
+
+	/**
+	 * The file reference in a cell written by {@link #offload}, or
+	 * {@code null} if the cell holds its value
+	 */
+	private String offloadReference(LSTable<?> table, String column,
+			Cursor cursor, int index) {
+		if (table.getOffloadThreshold(column) == 0
+				|| !"text".equals(cursor.getString(index)))
+			return null;
+		String value = cursor.getString(index + 1);
+		return value.startsWith(BLOB_FILE_PREFIX) ? value : null;
+	}
+
+	private byte[] readBlobFile(String reference) throws IOException {
+		File file = new File(blobDirectory(),
+				reference.substring(BLOB_FILE_PREFIX.length()));
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			byte[] value = new byte[(int) file.length()];
+			in.readFully(value);
+			return value;
+		} finally {
+			in.close();
+		}
+	}
+
+	private String utf8(byte[] bytes) {
+		try {
+			return new String(bytes, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Replaces values of offloaded columns that are over their threshold with a
+	 * reference to a file named after the SHA-1 of the value. The given values
+	 * are copied rather than changed if any are replaced
+	 */
+	private <T extends LSObject> ContentValues offload(LSTable<T> table,
+			ContentValues values) throws IOException {
+		ContentValues toReturn = values;
+		for (String column : table.getColumns().keySet()) {
+			int threshold = table.getOffloadThreshold(column);
+			if (threshold == 0 || !(values.get(column) instanceof byte[]))
+				continue;
+			byte[] value = values.getAsByteArray(column);
+			if (value.length <= threshold)
+				continue;
+			if (toReturn == values)
+				toReturn = new ContentValues(values);
+			toReturn.put(column, BLOB_FILE_PREFIX + writeBlobFile(value));
+		}
+		return toReturn;
+	}
+
+	private String writeBlobFile(byte[] value) throws IOException {
+		String name;
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			StringBuilder hex = new StringBuilder();
+			for (byte b : digest.digest(value)) {
+				hex.append(String.format(Locale.ENGLISH, "%02x", b));
+			}
+			name = hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e.getMessage());
+		}
+
+		File directory = blobDirectory();
+		File file = new File(directory, name);
+		if (file.exists())
+			return name;
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Can't create " + directory);
+		File temp = new File(directory, name + ".tmp");
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			out.write(value);
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(file))
+			throw new IOException("Can't rename " + temp);
+		return name;
+	}
+
+	private File blobDirectory() {
+		return new File(context.getDatabasePath(lsDatabase.getDbName())
+				.getPath() + "-blobs");
+	}
+
+	private byte[] readBlobChunk(LSTable<?> table, String column, long id,
+			long offset) {
+		open(table);
+		Cursor cursor = database.rawQuery("SELECT substr(CAST(" + column
+				+ " AS BLOB), ?, ?) FROM " + table.getName() + " WHERE "
+				+ LSObject._ID + "=?",
+				new String[] { Long.toString(offset + 1),
+						Integer.toString(BLOB_CHUNK_SIZE), Long.toString(id) });
+		byte[] chunk = null;
+		if (cursor.moveToFirst())
+			chunk = cursor.getBlob(0);
+		cursor.close();
+		close();
+		return chunk;
+	}
+
+	/**
+	 * Streams a value stored in a row by querying it a chunk at a time with
+	 * substr(). TEXT is cast to a BLOB first, so lengths and offsets are in
+	 * bytes rather than characters
+	 */
+	private final class BlobInputStream extends InputStream {
+		private final LSTable<?> table;
+		private final String column;
+		private final long id;
+		private final long length;
+		private long position;
+		private byte[] chunk;
+		private int chunkPosition;
+
+		private BlobInputStream(LSTable<?> table, String column, long id,
+				long length) {
+			this.table = table;
+			this.column = column;
+			this.id = id;
+			this.length = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!fill())
+				return -1;
+			return chunk[chunkPosition++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count)
+				throws IOException {
+			if (count == 0)
+				return 0;
+			if (!fill())
+				return -1;
+			int read = Math.min(count, chunk.length - chunkPosition);
+			System.arraycopy(chunk, chunkPosition, buffer, offset, read);
+			chunkPosition += read;
+			return read;
+		}
+
+		@Override
+		public int available() {
+			return chunk == null ? 0 : chunk.length - chunkPosition;
+		}
+
+		private boolean fill() throws IOException {
+			if (chunk != null && chunkPosition < chunk.length)
+				return true;
+			if (position >= length)
+				return false;
+			chunk = readBlobChunk(table, column, id, position);
+			if (chunk == null || chunk.length == 0)
+				throw new IOException("BLOB changed while it was being read");
+			position += chunk.length;
+			chunkPosition = 0;
+			return true;
+		}
 	}
 
 	private final class LSDatabaseHelper {
+		private Context context;
 		private LSDatabase database;
 		private DatabaseHelper dbHelper;
 
 		private LSDatabaseHelper(Context context, LSDatabase database) {
+			this.context = context;
 			this.database = database;
 			dbHelper = new DatabaseHelper(context);
 		}
@@ -376,17 +1953,87 @@ public abstract class LSController {
 			return dbHelper;
 		}
 
+		/**
+		 * Copies the database's snapshot into place if the database doesn't
+		 * exist yet. The copy is only moved into place once it is complete
+		 * and its version has been checked
+		 */
+		private void installSnapshot() {
+			File target = context.getDatabasePath(database.getDbName());
+			if (target.exists())
+				return;
+			File temp = new File(target.getPath() + ".snapshot");
+			try {
+				InputStream in;
+				if (database.getSnapshotAsset() != null)
+					in = context.getAssets().open(database.getSnapshotAsset());
+				else if (database.getSnapshotFile() != null)
+					in = new FileInputStream(database.getSnapshotFile());
+				else
+					return;
+				try {
+					File directory = target.getParentFile();
+					if (!directory.isDirectory() && !directory.mkdirs())
+						throw new IOException("Can't create " + directory);
+					copy(in, temp);
+				} finally {
+					in.close();
+				}
+
+				SQLiteDatabase snapshot = SQLiteDatabase.openDatabase(
+						temp.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+				int version = snapshot.getVersion();
+				snapshot.close();
+				if (version > database.getDbVersion())
+					throw new IOException("Snapshot version " + version
+							+ " is newer than " + database.getDbVersion());
+				if (!temp.renameTo(target))
+					throw new IOException("Can't rename " + temp);
+			} catch (Exception e) {
+				e.printStackTrace();
+				temp.delete();
+			}
+		}
+
+		private void copy(InputStream in, File file) throws IOException {
+			FileOutputStream out = new FileOutputStream(file);
+			try {
+				byte[] buffer = new byte[64 * 1024];
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					out.write(buffer, 0, read);
+				}
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+		}
+
 		private class DatabaseHelper extends SQLiteOpenHelper {
+			private boolean snapshotChecked;
 
 			public DatabaseHelper(Context context) {
 				super(context, database.getDbName(), null, database
 						.getDbVersion());
 			}
 
+			@Override
+			public synchronized SQLiteDatabase getWritableDatabase() {
+				if (!snapshotChecked) {
+					snapshotChecked = true;
+					installSnapshot();
+				}
+				return super.getWritableDatabase();
+			}
+
 			@Override
 			public void onCreate(SQLiteDatabase db) {
 				for (LSTable<LSObject> table : database.tables()) {
-					db.execSQL(table.getCreateStatement());
+					if (table.getStorageMode() == LSTable.STORAGE_MEMORY)
+						continue;
+					for (String statement : table.getCreateStatements()) {
+						db.execSQL(statement);
+					}
 				}
 			}
 
@@ -1,8 +1,12 @@
 package com.mhemmings.lsstorage;
 
+import java.io.File;
+
 public abstract class LSDatabase {
 	private String dbName;
 	private int dbVer;
+	private String snapshotAsset;
+	private File snapshotFile;
 
 	/**
 	 * How you tell LSStorage about your tables. This method has to return an
@@ -39,6 +43,53 @@ public abstract class LSDatabase {
 		this.dbVer = database_version;
 	}
 
+	/**
+	 * Can be called in the database constructor to ship a prebuilt database.
+	 * The first time the database is opened, if it doesn't exist yet, the
+	 * asset is copied into place instead of creating every table and
+	 * inserting reference data row by row. The snapshot's
+	 * {@code user_version} must not be newer than the database version; if it
+	 * is older, {@link #onUpgrade} is applied as usual. Snapshots which can't
+	 * be used are ignored and the database is created as normal
+	 * 
+	 * @param assetPath
+	 *            The path of the SQLite file within the app's assets
+	 */
+	protected void setSnapshotAsset(String assetPath) {
+		this.snapshotAsset = assetPath;
+		this.snapshotFile = null;
+	}
+
+	/**
+	 * The same as {@link #setSnapshotAsset} but for a file, e.g. one which
+	 * has been downloaded
+	 * 
+	 * @param file
+	 *            The SQLite file
+	 */
+	protected void setSnapshotFile(File file) {
+		this.snapshotFile = file;
+		this.snapshotAsset = null;
+	}
+
+	/**
+	 * Gets the snapshot asset set by {@link #setSnapshotAsset}
+	 * 
+	 * @return The asset path, or {@code null} if there isn't one
+	 */
+	public String getSnapshotAsset() {
+		return snapshotAsset;
+	}
+
+	/**
+	 * Gets the snapshot file set by {@link #setSnapshotFile}
+	 * 
+	 * @return The file, or {@code null} if there isn't one
+	 */
+	public File getSnapshotFile() {
+		return snapshotFile;
+	}
+
 	/**
 	 * Gets the full database name (including the .db extension)
 	 * 
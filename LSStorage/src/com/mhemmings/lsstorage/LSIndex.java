@@ -0,0 +1,144 @@
+package com.mhemmings.lsstorage;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The in-process indexes of a single {@link LSTable}: for each indexed column
+ * (see {@link Column#index}) a map from value to the {@code _id}s holding it,
+ * plus a cache of the objects found through them. Maintained by the
+ * {@link LSController}. Not thread-safe
+ * 
+ * @param <T>
+ *            The type of {@link LSObject} in the table
+ */
+final class LSIndex<T extends LSObject> {
+	private final Map<String, ColumnIndex> columns;
+	private final LSLongMap<T> objects;
+
+	LSIndex(LSTable<T> table) {
+		columns = new HashMap<String, ColumnIndex>();
+		for (String column : table.getIndexedColumns()) {
+			columns.put(column, new ColumnIndex(LSTable.INTEGER.equals(table
+					.getColumns().get(column))));
+		}
+		objects = new LSLongMap<T>();
+	}
+
+	/**
+	 * Gets the {@code _id}s of the rows where a column holds a value
+	 * 
+	 * @param column
+	 *            An indexed column
+	 * @param value
+	 *            The value, as it would be written in a WHERE clause
+	 * @return The {@code _id}s in ascending order, or {@code null} if there
+	 *         are none
+	 * @throws NumberFormatException
+	 *             if the column is an INTEGER and the value isn't, in which
+	 *             case only SQLite can answer
+	 */
+	long[] lookup(String column, String value) {
+		ColumnIndex index = columns.get(column);
+		if (index.integer)
+			return index.byLong.get(Long.parseLong(value));
+		return index.byString.get(value);
+	}
+
+	void add(long id, String column, long value) {
+		ColumnIndex index = columns.get(column);
+		index.byLong.put(value, with(index.byLong.get(value), id));
+		index.keys.put(id, value);
+	}
+
+	void add(long id, String column, String value) {
+		ColumnIndex index = columns.get(column);
+		index.byString.put(value, with(index.byString.get(value), id));
+		index.keys.put(id, value);
+	}
+
+	/**
+	 * Removes a row from every column index and the object cache
+	 */
+	void remove(long id) {
+		objects.remove(id);
+		for (ColumnIndex index : columns.values()) {
+			Object key = index.keys.remove(id);
+			if (key instanceof Long) {
+				long value = (Long) key;
+				long[] ids = without(index.byLong.get(value), id);
+				if (ids == null)
+					index.byLong.remove(value);
+				else
+					index.byLong.put(value, ids);
+			} else if (key != null) {
+				String value = (String) key;
+				long[] ids = without(index.byString.get(value), id);
+				if (ids == null)
+					index.byString.remove(value);
+				else
+					index.byString.put(value, ids);
+			}
+		}
+	}
+
+	T object(long id) {
+		return objects.get(id);
+	}
+
+	void cache(long id, T object) {
+		objects.put(id, object);
+	}
+
+	private static long[] with(long[] ids, long id) {
+		if (ids == null)
+			return new long[] { id };
+		int position = 0;
+		while (position < ids.length && ids[position] < id) {
+			position++;
+		}
+		if (position < ids.length && ids[position] == id)
+			return ids;
+		long[] toReturn = new long[ids.length + 1];
+		System.arraycopy(ids, 0, toReturn, 0, position);
+		toReturn[position] = id;
+		System.arraycopy(ids, position, toReturn, position + 1, ids.length
+				- position);
+		return toReturn;
+	}
+
+	private static long[] without(long[] ids, long id) {
+		if (ids == null)
+			return null;
+		int position = 0;
+		while (position < ids.length && ids[position] != id) {
+			position++;
+		}
+		if (position == ids.length)
+			return ids;
+		if (ids.length == 1)
+			return null;
+		long[] toReturn = new long[ids.length - 1];
+		System.arraycopy(ids, 0, toReturn, 0, position);
+		System.arraycopy(ids, position + 1, toReturn, position, ids.length
+				- position - 1);
+		return toReturn;
+	}
+
+	private static final class ColumnIndex {
+		private final boolean integer;
+		private final LSLongMap<long[]> byLong;
+		private final LSStringMap<long[]> byString;
+		/**
+		 * The value each row is indexed under, so it can be removed
+		 */
+		private final LSLongMap<Object> keys;
+
+		private ColumnIndex(boolean integer) {
+			this.integer = integer;
+			byLong = integer ? new LSLongMap<long[]>() : null;
+			byString = integer ? null : new LSStringMap<long[]>();
+			keys = new LSLongMap<Object>();
+		}
+	}
+}
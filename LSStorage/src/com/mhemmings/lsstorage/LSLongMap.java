@@ -0,0 +1,132 @@
+package com.mhemmings.lsstorage;
+
+import java.util.Arrays;
+
+/**
+ * A map from {@code long} keys to values using open addressing with linear
+ * probing, so lookups neither box the key nor chase entry objects. Not
+ * thread-safe
+ * 
+ * @param <V>
+ *            The type of the values
+ */
+final class LSLongMap<V> {
+	private long[] keys;
+	private Object[] values;
+	private boolean[] used;
+	private int size;
+
+	LSLongMap() {
+		allocate(16);
+	}
+
+	int size() {
+		return size;
+	}
+
+	@SuppressWarnings("unchecked")
+	V get(long key) {
+		for (int i = slot(key); used[i]; i = next(i)) {
+			if (keys[i] == key)
+				return (V) values[i];
+		}
+		return null;
+	}
+
+	void put(long key, V value) {
+		if ((size + 1) * 2 > keys.length)
+			grow();
+		int i = slot(key);
+		while (used[i]) {
+			if (keys[i] == key) {
+				values[i] = value;
+				return;
+			}
+			i = next(i);
+		}
+		used[i] = true;
+		keys[i] = key;
+		values[i] = value;
+		size++;
+	}
+
+	@SuppressWarnings("unchecked")
+	V remove(long key) {
+		int hole = slot(key);
+		while (used[hole] && keys[hole] != key) {
+			hole = next(hole);
+		}
+		if (!used[hole])
+			return null;
+		V removed = (V) values[hole];
+
+		// Shift back any following entries which can no longer be reached
+		// from their home slot, instead of leaving a tombstone
+		for (int i = next(hole); used[i]; i = next(i)) {
+			int home = slot(keys[i]);
+			boolean reachable = i > hole ? home > hole && home <= i
+					: home > hole || home <= i;
+			if (!reachable) {
+				keys[hole] = keys[i];
+				values[hole] = values[i];
+				hole = i;
+			}
+		}
+		used[hole] = false;
+		values[hole] = null;
+		size--;
+		return removed;
+	}
+
+	void clear() {
+		Arrays.fill(used, false);
+		Arrays.fill(values, null);
+		size = 0;
+	}
+
+	/**
+	 * Gets every key, in ascending order
+	 */
+	long[] sortedKeys() {
+		long[] toReturn = new long[size];
+		int n = 0;
+		for (int i = 0; i < keys.length; i++) {
+			if (used[i])
+				toReturn[n++] = keys[i];
+		}
+		Arrays.sort(toReturn);
+		return toReturn;
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new Object[capacity];
+		used = new boolean[capacity];
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		boolean[] oldUsed = used;
+		allocate(keys.length * 2);
+		size = 0;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldUsed[i])
+				put(oldKeys[i], cast(oldValues[i]));
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private V cast(Object value) {
+		return (V) value;
+	}
+
+	private int slot(long key) {
+		long hash = key * 0x9E3779B97F4A7C15L;
+		return (int) (hash ^ (hash >>> 32)) & (keys.length - 1);
+	}
+
+	private int next(int i) {
+		return (i + 1) & (keys.length - 1);
+	}
+}
@@ -0,0 +1,70 @@
+package com.mhemmings.lsstorage;
+
+/**
+ * What a run of {@link LSController#runMaintenance} did
+ */
+public final class LSMaintenanceReport {
+	private final int purgedRows;
+	private final long fileSizeBefore;
+	private final long fileSizeAfter;
+	private final long durationMillis;
+
+	LSMaintenanceReport(int purgedRows, long fileSizeBefore,
+			long fileSizeAfter, long durationMillis) {
+		this.purgedRows = purgedRows;
+		this.fileSizeBefore = fileSizeBefore;
+		this.fileSizeAfter = fileSizeAfter;
+		this.durationMillis = durationMillis;
+	}
+
+	/**
+	 * Gets the number of soft deleted rows which were removed for good
+	 * 
+	 * @return The number of rows
+	 */
+	public int getPurgedRows() {
+		return purgedRows;
+	}
+
+	/**
+	 * Gets the size of the database file before maintenance
+	 * 
+	 * @return The size in bytes
+	 */
+	public long getFileSizeBefore() {
+		return fileSizeBefore;
+	}
+
+	/**
+	 * Gets the size of the database file after maintenance
+	 * 
+	 * @return The size in bytes
+	 */
+	public long getFileSizeAfter() {
+		return fileSizeAfter;
+	}
+
+	/**
+	 * Gets how much smaller the database file is after maintenance
+	 * 
+	 * @return The number of bytes reclaimed
+	 */
+	public long getReclaimedBytes() {
+		return fileSizeBefore - fileSizeAfter;
+	}
+
+	/**
+	 * Gets how long maintenance took
+	 * 
+	 * @return The duration in milliseconds
+	 */
+	public long getDurationMillis() {
+		return durationMillis;
+	}
+
+	@Override
+	public String toString() {
+		return "Purged " + purgedRows + " rows, reclaimed "
+				+ getReclaimedBytes() + " bytes in " + durationMillis + "ms";
+	}
+}
@@ -0,0 +1,135 @@
+package com.mhemmings.lsstorage;
+
+/**
+ * How often one shape of query has run and how long it took, as collected
+ * by {@link LSController#startDiagnostics}. Queries have the same shape when
+ * they only differ in their literal values
+ */
+public final class LSQueryStats {
+	private final String table;
+	private final String where;
+	private final String orderBy;
+	private final String plan;
+	private final boolean fullScan;
+	private final String suggestedIndex;
+	private int count;
+	private long totalNanos;
+	private long maxNanos;
+
+	LSQueryStats(String table, String where, String orderBy, String plan,
+			boolean fullScan, String suggestedIndex) {
+		this.table = table;
+		this.where = where;
+		this.orderBy = orderBy;
+		this.plan = plan;
+		this.fullScan = fullScan;
+		this.suggestedIndex = suggestedIndex;
+	}
+
+	synchronized void record(long nanos) {
+		count++;
+		totalNanos += nanos;
+		maxNanos = Math.max(maxNanos, nanos);
+	}
+
+	/**
+	 * Gets the name of the table queried
+	 * 
+	 * @return The table name
+	 */
+	public String getTable() {
+		return table;
+	}
+
+	/**
+	 * Gets the WHERE clause, with every literal replaced by {@code ?}
+	 * 
+	 * @return The WHERE clause, or {@code null} if there isn't one
+	 */
+	public String getWhere() {
+		return where;
+	}
+
+	/**
+	 * Gets the ORDER BY clause
+	 * 
+	 * @return The ORDER BY clause, or {@code null} if there isn't one
+	 */
+	public String getOrderBy() {
+		return orderBy;
+	}
+
+	/**
+	 * Gets SQLite's EXPLAIN QUERY PLAN for the first query of this shape
+	 * 
+	 * @return One line per step of the plan
+	 */
+	public String getPlan() {
+		return plan;
+	}
+
+	/**
+	 * Whether the query reads every row of a large table
+	 * 
+	 * @return {@code true} if the plan scans a table with at least as many
+	 *         rows as {@link LSController#startDiagnostics} was given
+	 */
+	public boolean isFullScan() {
+		return fullScan;
+	}
+
+	/**
+	 * Gets an index which would let SQLite avoid the full scan, built from
+	 * the table's {@link Column}s in the WHERE and ORDER BY clauses
+	 * 
+	 * @return A CREATE INDEX statement, or {@code null} if there is no full
+	 *         scan or no column to index
+	 */
+	public String getSuggestedIndex() {
+		return suggestedIndex;
+	}
+
+	/**
+	 * Gets how many times a query of this shape has run
+	 * 
+	 * @return The number of queries
+	 */
+	public synchronized int getCount() {
+		return count;
+	}
+
+	/**
+	 * Gets the time spent running queries of this shape
+	 * 
+	 * @return The total time in milliseconds
+	 */
+	public synchronized double getTotalMillis() {
+		return totalNanos / 1000000.0;
+	}
+
+	/**
+	 * Gets the average time a query of this shape took
+	 * 
+	 * @return The mean time in milliseconds
+	 */
+	public synchronized double getMeanMillis() {
+		return count == 0 ? 0 : totalNanos / 1000000.0 / count;
+	}
+
+	/**
+	 * Gets the longest time a query of this shape took
+	 * 
+	 * @return The maximum time in milliseconds
+	 */
+	public synchronized double getMaxMillis() {
+		return maxNanos / 1000000.0;
+	}
+
+	@Override
+	public String toString() {
+		return table + (where == null ? "" : " WHERE " + where)
+				+ (orderBy == null ? "" : " ORDER BY " + orderBy) + ": "
+				+ getCount() + " queries, " + getMeanMillis() + "ms mean"
+				+ (fullScan ? ", full scan" : "");
+	}
+}
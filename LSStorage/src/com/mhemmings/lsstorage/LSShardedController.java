@@ -0,0 +1,513 @@
+package com.mhemmings.lsstorage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.SQLException;
+
+/**
+ * A controller which spreads its data over several database files, or
+ * shards, each described by its own {@link LSDatabase}. Every write and keyed
+ * read takes a shard key, such as an account name, and goes to the one shard
+ * that key belongs to; see {@link #shardFor}. Unkeyed reads are run on every
+ * open shard in parallel and merged. Calls may come from several threads:
+ * each shard is locked and written independently, so calls for keys on
+ * different shards don't wait on one another, while calls for the same
+ * shard take turns. {@link LSTable#out} must be safe to call from several
+ * threads at once.
+ * 
+ * As with {@link LSController}, extend this class to abstract away the
+ * database interface. Every shard must have the same tables
+ */
+public abstract class LSShardedController {
+	private final Context context;
+	private final LSDatabase[] databases;
+	private final Shard[] shards;
+
+	/**
+	 * Opens every shard
+	 * 
+	 * @param context
+	 *            The context to open the databases with
+	 * @param databases
+	 *            One {@link LSDatabase} per shard, each with its own name. The
+	 *            order decides which keys go where, so it must never change
+	 */
+	public LSShardedController(Context context, LSDatabase[] databases) {
+		this.context = context;
+		this.databases = databases.clone();
+		this.shards = new Shard[databases.length];
+		for (int i = 0; i < shards.length; i++) {
+			openShard(i);
+		}
+	}
+
+	/**
+	 * Gets the number of shards, open or not
+	 * 
+	 * @return The number of shards
+	 */
+	protected int getShardCount() {
+		return shards.length;
+	}
+
+	/**
+	 * Opens a shard closed with {@link #closeShard}. Does nothing if it is
+	 * already open
+	 * 
+	 * @param shard
+	 *            The index of the shard
+	 */
+	protected synchronized void openShard(int shard) {
+		if (shards[shard] == null)
+			shards[shard] = new Shard(context, databases[shard]);
+	}
+
+	/**
+	 * Closes a shard, dropping everything cached for it. Keyed operations on
+	 * a closed shard throw {@link IllegalStateException}, and unkeyed reads
+	 * leave it out, until it is opened again with {@link #openShard}
+	 * 
+	 * @param shard
+	 *            The index of the shard
+	 */
+	protected synchronized void closeShard(int shard) {
+		if (shards[shard] != null) {
+			shards[shard].stopMaintenance();
+			shards[shard] = null;
+		}
+	}
+
+	/**
+	 * Whether a shard is open
+	 * 
+	 * @param shard
+	 *            The index of the shard
+	 * @return {@code true} if the shard is open
+	 */
+	protected synchronized boolean isShardOpen(int shard) {
+		return shards[shard] != null;
+	}
+
+	/**
+	 * Picks the shard a key belongs to. By default this is the key's
+	 * {@link Object#hashCode} modulo the number of shards, so keys must hash
+	 * the same way every time the app runs, as {@link String} and
+	 * {@link Long} do. Override to route keys some other way
+	 * 
+	 * @param key
+	 *            The shard key
+	 * @return The index of the shard, from {@code 0} to
+	 *         {@link #getShardCount} - 1
+	 */
+	protected int shardFor(Object key) {
+		return (key.hashCode() & Integer.MAX_VALUE) % shards.length;
+	}
+
+	/**
+	 * Saves an {@link LSObject} into a {@link LSTable} in the shard of a key.
+	 * See {@link LSController#save}
+	 * 
+	 * @param key
+	 *            The shard key
+	 * @param table
+	 *            the {@link LSTable} in which to save the object
+	 * @param object
+	 *            the {@link LSObject} to save
+	 * @return The row ID of the newly inserted row within the shard, or -1 if
+	 *         an error occurred
+	 */
+	protected <T extends LSObject> long save(Object key, LSTable<T> table,
+			T object) {
+		Shard shard = shard(key);
+		synchronized (shard) {
+			return shard.save(table, object);
+		}
+	}
+
+	/**
+	 * Saves many {@link LSObject}s into a {@link LSTable} in the shard of a
+	 * key. See {@link LSController#saveMany}
+	 * 
+	 * @param key
+	 *            The shard key
+	 * @param table
+	 *            the {@link LSTable} in which to save the objects
+	 * @param objects
+	 *            An array of {@link LSObject}s to save
+	 */
+	protected <T extends LSObject> void saveMany(Object key, LSTable<T> table,
+			T[] objects) {
+		Shard shard = shard(key);
+		synchronized (shard) {
+			shard.saveMany(table, objects);
+		}
+	}
+
+	/**
+	 * Finds {@link LSObject}s within a {@link LSTable} in the shard of a key.
+	 * See {@link LSController#find}
+	 * 
+	 * @param key
+	 *            The shard key
+	 * @param table
+	 *            the {@link LSTable} in which to search for the objects
+	 * @param where
+	 *            A filter declaring which rows to return, formatted as an SQL
+	 *            WHERE clause (excluding the WHERE itself). Passing
+	 *            {@code null} will return all rows for the given table.
+	 * @param orderBy
+	 *            How to order the rows, formatted as an SQL ORDER BY clause
+	 *            (excluding the ORDER BY itself). Passing null will use the
+	 *            default sort order, which may be unordered.
+	 * @param limit
+	 *            Limits the number of rows returned by the query, formatted as
+	 *            LIMIT clause. Passing null denotes no LIMIT clause.
+	 * @return An {@link ArrayList} of {@link LSObjects} that match the criteria
+	 */
+	protected <T extends LSObject> ArrayList<T> find(Object key,
+			LSTable<T> table, String where, String orderBy, String limit) {
+		Shard shard = shard(key);
+		synchronized (shard) {
+			return shard.find(table, where, orderBy, limit);
+		}
+	}
+
+	/**
+	 * Finds a single {@link LSObject} within a {@link LSTable} in the shard of
+	 * a key. See {@link LSController#findOne}
+	 * 
+	 * @param key
+	 *            The shard key
+	 * @param table
+	 *            the {@link LSTable} in which to search for the object
+	 * @param where
+	 *            A filter declaring which rows to return, formatted as an SQL
+	 *            WHERE clause (excluding the WHERE itself)
+	 * @return A {@link LSObject} that matches the criteria
+	 */
+	protected <T extends LSObject> T findOne(Object key, LSTable<T> table,
+			String where) {
+		Shard shard = shard(key);
+		synchronized (shard) {
+			return shard.findOne(table, where);
+		}
+	}
+
+	/**
+	 * Updates rows of a {@link LSTable} in the shard of a key. See
+	 * {@link LSController#update}
+	 * 
+	 * @param key
+	 *            The shard key
+	 * @param table
+	 *            The {@link LSTable} to update
+	 * @param values
+	 *            A map from column names to new column values
+	 * @param where
+	 *            A filter declaring which rows to update, formatted as an SQL
+	 *            WHERE clause (excluding the WHERE itself)
+	 * @return The number of rows affected
+	 */
+	protected <T extends LSObject> int update(Object key, LSTable<T> table,
+			ContentValues values, String where) {
+		Shard shard = shard(key);
+		synchronized (shard) {
+			return shard.update(table, values, where);
+		}
+	}
+
+	/**
+	 * Deletes rows of a {@link LSTable} in the shard of a key. See
+	 * {@link LSController#delete}
+	 * 
+	 * @param key
+	 *            The shard key
+	 * @param table
+	 *            The {@link LSTable} to delete from
+	 * @param where
+	 *            A filter declaring which rows to delete, formatted as an SQL
+	 *            WHERE clause (excluding the WHERE itself)
+	 * @return The number of rows affected
+	 */
+	protected <T extends LSObject> int delete(Object key, LSTable<T> table,
+			String where) {
+		Shard shard = shard(key);
+		synchronized (shard) {
+			return shard.delete(table, where);
+		}
+	}
+
+	/**
+	 * Finds {@link LSObject}s within a {@link LSTable} across every open
+	 * shard. The shards are queried in parallel, each with the same ORDER BY
+	 * and a LIMIT covering the whole page, and the results merged, so the
+	 * objects come back as if from one table. Rows with equal sort keys keep
+	 * shard order.
+	 * 
+	 * Across shards, {@code orderBy} may only name columns of the table, each
+	 * optionally followed by ASC or DESC, which are neither lazy nor
+	 * compressed. {@code _id}s are only unique within a shard, so they can't
+	 * be ordered by
+	 * 
+	 * @param table
+	 *            the {@link LSTable} in which to search for the objects
+	 * @param where
+	 *            A filter declaring which rows to return, formatted as an SQL
+	 *            WHERE clause (excluding the WHERE itself). Passing
+	 *            {@code null} will return all rows for the given table.
+	 * @param orderBy
+	 *            How to order the rows, e.g. {@code "name, year DESC"}.
+	 *            Passing null returns each shard's rows in turn.
+	 * @param limit
+	 *            Limits the number of rows returned, as {@code "count"},
+	 *            {@code "count OFFSET offset"} or {@code "offset, count"}.
+	 *            Passing null denotes no LIMIT clause.
+	 * @return An {@link ArrayList} of {@link LSObjects} that match the criteria
+	 * @throws IllegalArgumentException
+	 *             if {@code orderBy} or {@code limit} can't be merged
+	 */
+	protected <T extends LSObject> ArrayList<T> find(final LSTable<T> table,
+			final String where, final String orderBy, String limit) {
+		final Comparator<Object[]> order = orderBy == null ? null
+				: new RowOrder(table, orderBy);
+		long offset = 0;
+		long count = -1;
+		if (limit != null) {
+			long[] parsed = parseLimit(limit);
+			offset = parsed[0];
+			count = parsed[1];
+		}
+		final String shardLimit = count < 0 ? null : Long.toString(offset
+				+ count);
+
+		final List<Shard> open = openShards();
+		List<ArrayList<T>> results = new ArrayList<ArrayList<T>>();
+		// The values of each shard's rows, to sort them by
+		final List<List<ContentValues>> values = new ArrayList<List<ContentValues>>();
+		for (int i = 0; i < open.size(); i++) {
+			values.add(order == null ? null : new ArrayList<ContentValues>());
+		}
+		if (open.size() == 1) {
+			results.add(find(open.get(0), table, where, orderBy, shardLimit,
+					values.get(0)));
+		} else if (open.size() > 1) {
+			ExecutorService executor = Executors.newFixedThreadPool(open
+					.size());
+			List<Future<ArrayList<T>>> futures = new ArrayList<Future<ArrayList<T>>>();
+			try {
+				for (int i = 0; i < open.size(); i++) {
+					final int shard = i;
+					futures.add(executor.submit(new Callable<ArrayList<T>>() {
+						@Override
+						public ArrayList<T> call() {
+							return find(open.get(shard), table, where,
+									orderBy, shardLimit, values.get(shard));
+						}
+					}));
+				}
+				for (Future<ArrayList<T>> future : futures) {
+					results.add(future.get());
+				}
+			} catch (ExecutionException e) {
+				throw new SQLException(e.getCause().toString());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException(e.toString());
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+
+		ArrayList<T> objects = new ArrayList<T>();
+		if (order == null) {
+			for (ArrayList<T> result : results) {
+				objects.addAll(result);
+			}
+		} else {
+			List<Object[]> rows = new ArrayList<Object[]>();
+			for (int shard = 0; shard < results.size(); shard++) {
+				ArrayList<T> result = results.get(shard);
+				for (int i = 0; i < result.size(); i++) {
+					rows.add(new Object[] { result.get(i),
+							values.get(shard).get(i) });
+				}
+			}
+			Collections.sort(rows, order);
+			for (Object[] row : rows) {
+				@SuppressWarnings("unchecked")
+				T object = (T) row[0];
+				objects.add(object);
+			}
+		}
+
+		int from = (int) Math.min(offset, objects.size());
+		int to = count < 0 ? objects.size() : (int) Math.min(offset + count,
+				objects.size());
+		return new ArrayList<T>(objects.subList(from, to));
+	}
+
+	/**
+	 * Helper method to get all {@link LSObject}s from a {@link LSTable} across
+	 * every open shard. Same as calling {@code find(table, null, null, null)}
+	 * 
+	 * @param table
+	 *            the {@link LSTable} in which to search for the objects
+	 * @return An {@link ArrayList} of {@link LSObjects}
+	 */
+	protected <T extends LSObject> ArrayList<T> findAll(LSTable<T> table) {
+		return find(table, null, null, null);
+	}
+
+	private <T extends LSObject> ArrayList<T> find(Shard shard,
+			LSTable<T> table, String where, String orderBy, String limit,
+			List<ContentValues> rows) {
+		synchronized (shard) {
+			return shard.find(table, where, orderBy, limit, rows);
+		}
+	}
+
+	private synchronized Shard shard(Object key) {
+		int index = shardFor(key);
+		if (shards[index] == null)
+			throw new IllegalStateException("Shard " + index + " is closed");
+		return shards[index];
+	}
+
+	private synchronized List<Shard> openShards() {
+		List<Shard> open = new ArrayList<Shard>();
+		for (Shard shard : shards) {
+			if (shard != null)
+				open.add(shard);
+		}
+		return open;
+	}
+
+	/**
+	 * Splits an SQL LIMIT clause into its offset and count. A negative count
+	 * means no limit
+	 */
+	private static long[] parseLimit(String limit) {
+		String clause = limit.trim().toUpperCase(Locale.ENGLISH);
+		try {
+			int comma = clause.indexOf(',');
+			int offset = clause.indexOf("OFFSET");
+			if (comma >= 0)
+				return new long[] {
+						Long.parseLong(clause.substring(0, comma).trim()),
+						Long.parseLong(clause.substring(comma + 1).trim()) };
+			if (offset >= 0)
+				return new long[] {
+						Long.parseLong(clause.substring(offset + 6).trim()),
+						Long.parseLong(clause.substring(0, offset).trim()) };
+			return new long[] { 0, Long.parseLong(clause) };
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Can't merge LIMIT " + limit);
+		}
+	}
+
+	/**
+	 * Orders {object, row values} pairs the way SQLite orders the ORDER BY
+	 * columns: NULLs, then numbers, then text, then BLOBs
+	 */
+	private static class RowOrder implements Comparator<Object[]> {
+		private final String[] columns;
+		private final boolean[] descending;
+
+		RowOrder(LSTable<?> table, String orderBy) {
+			String[] terms = orderBy.split(",");
+			columns = new String[terms.length];
+			descending = new boolean[terms.length];
+			for (int i = 0; i < terms.length; i++) {
+				String[] words = terms[i].trim().split("\\s+");
+				String direction = words.length > 1 ? words[1]
+						.toUpperCase(Locale.ENGLISH) : "ASC";
+				if (words.length > 2
+						|| !table.getColumns().containsKey(words[0])
+						|| table.isLazy(words[0])
+						|| table.isCompressed(words[0])
+						|| !(direction.equals("ASC") || direction
+								.equals("DESC")))
+					throw new IllegalArgumentException("Can't merge ORDER BY "
+							+ orderBy);
+				columns[i] = words[0];
+				descending[i] = direction.equals("DESC");
+			}
+		}
+
+		@Override
+		public int compare(Object[] a, Object[] b) {
+			for (int i = 0; i < columns.length; i++) {
+				int compared = compareValues(
+						((ContentValues) a[1]).get(columns[i]),
+						((ContentValues) b[1]).get(columns[i]));
+				if (compared != 0)
+					return descending[i] ? -compared : compared;
+			}
+			return 0;
+		}
+
+		private static int compareValues(Object a, Object b) {
+			int rank = rank(a) - rank(b);
+			if (rank != 0)
+				return rank;
+			if (rank(a) == 1) {
+				Number x = number(a);
+				Number y = number(b);
+				if (x instanceof Double || x instanceof Float
+						|| y instanceof Double || y instanceof Float)
+					return Double.compare(x.doubleValue(), y.doubleValue());
+				return x.longValue() < y.longValue() ? -1 : x.longValue() == y
+						.longValue() ? 0 : 1;
+			}
+			if (a instanceof String)
+				return ((String) a).compareTo((String) b);
+			if (a instanceof byte[]) {
+				byte[] x = (byte[]) a;
+				byte[] y = (byte[]) b;
+				for (int i = 0; i < Math.min(x.length, y.length); i++) {
+					int compared = (x[i] & 0xFF) - (y[i] & 0xFF);
+					if (compared != 0)
+						return compared;
+				}
+				return x.length - y.length;
+			}
+			return 0;
+		}
+
+		private static int rank(Object value) {
+			if (value == null)
+				return 0;
+			if (value instanceof Number || value instanceof Boolean)
+				return 1;
+			if (value instanceof String)
+				return 2;
+			return 3;
+		}
+	}
+
+	private static Number number(Object value) {
+		if (value instanceof Boolean)
+			return ((Boolean) value) ? 1L : 0L;
+		return (Number) value;
+	}
+
+	/**
+	 * The controller of a single shard
+	 */
+	private static class Shard extends LSController {
+		Shard(Context context, LSDatabase database) {
+			super(context, database);
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package com.mhemmings.lsstorage;
+
+/**
+ * A map from {@link String} keys to values using open addressing with linear
+ * probing. The {@code String} counterpart of {@link LSLongMap}. Not
+ * thread-safe
+ * 
+ * @param <V>
+ *            The type of the values
+ */
+final class LSStringMap<V> {
+	private String[] keys;
+	private Object[] values;
+	private int size;
+
+	LSStringMap() {
+		allocate(16);
+	}
+
+	int size() {
+		return size;
+	}
+
+	@SuppressWarnings("unchecked")
+	V get(String key) {
+		for (int i = slot(key); keys[i] != null; i = next(i)) {
+			if (keys[i].equals(key))
+				return (V) values[i];
+		}
+		return null;
+	}
+
+	void put(String key, V value) {
+		if ((size + 1) * 2 > keys.length)
+			grow();
+		int i = slot(key);
+		while (keys[i] != null) {
+			if (keys[i].equals(key)) {
+				values[i] = value;
+				return;
+			}
+			i = next(i);
+		}
+		keys[i] = key;
+		values[i] = value;
+		size++;
+	}
+
+	@SuppressWarnings("unchecked")
+	V remove(String key) {
+		int hole = slot(key);
+		while (keys[hole] != null && !keys[hole].equals(key)) {
+			hole = next(hole);
+		}
+		if (keys[hole] == null)
+			return null;
+		V removed = (V) values[hole];
+
+		// Shift back any following entries which can no longer be reached
+		// from their home slot, instead of leaving a tombstone
+		for (int i = next(hole); keys[i] != null; i = next(i)) {
+			int home = slot(keys[i]);
+			boolean reachable = i > hole ? home > hole && home <= i
+					: home > hole || home <= i;
+			if (!reachable) {
+				keys[hole] = keys[i];
+				values[hole] = values[i];
+				hole = i;
+			}
+		}
+		keys[hole] = null;
+		values[hole] = null;
+		size--;
+		return removed;
+	}
+
+	private void allocate(int capacity) {
+		keys = new String[capacity];
+		values = new Object[capacity];
+	}
+
+	@SuppressWarnings("unchecked")
+	private void grow() {
+		String[] oldKeys = keys;
+		Object[] oldValues = values;
+		allocate(keys.length * 2);
+		size = 0;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != null)
+				put(oldKeys[i], (V) oldValues[i]);
+		}
+	}
+
+	private int slot(String key) {
+		int hash = key.hashCode() * 0x9E3779B9;
+		return (hash ^ (hash >>> 16)) & (keys.length - 1);
+	}
+
+	private int next(int i) {
+		return (i + 1) & (keys.length - 1);
+	}
+}
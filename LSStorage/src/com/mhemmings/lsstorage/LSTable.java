@@ -1,11 +1,20 @@
 package com.mhemmings.lsstorage;
 
+import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 import android.content.ContentValues;
 
@@ -23,12 +32,49 @@ public abstract class LSTable<T extends LSObject> {
 	public static final String REAL = "REAL";
 	public static final String TEXT = "TEXT";
 	public static final String BLOB = "BLOB";
+	/**
+	 * The default {@link #getStorageMode}: rows live in the database file
+	 */
+	public static final int STORAGE_DISK = 0;
+	/**
+	 * Rows live in an in-memory SQLite database owned by the
+	 * {@link LSController}, and are lost when its process dies
+	 */
+	public static final int STORAGE_MEMORY = 1;
+	/**
+	 * Rows live in the database file, and the {@link LSController} also keeps
+	 * every object in memory, keyed by {@code _id}. Writes go to both, and
+	 * finding every object or finding one with {@code whereEquals(_ID, id)}
+	 * never touches the database
+	 */
+	public static final int STORAGE_MIRRORED = 2;
+	/**
+	 * The tombstone column added to tables which soft delete. NULL while a row
+	 * is live, and the time it was deleted in milliseconds since the epoch
+	 * once it isn't
+	 */
+	public static final String _DELETED = "_deleted";
+	/**
+	 * The suffix of the table holding a table's change log. See
+	 * {@link #isChangeLogged}
+	 */
+	public static final String CHANGES_SUFFIX = "_changes";
 	private ContentValues currentRow;
 	private Map<String, String> columns;
+	private Set<String> lazyColumns;
+	private Map<String, Integer> offloadThresholds;
+	private Map<String, Integer> compressThresholds;
+	private List<String> indexedColumns;
+	private String versionColumn;
+	private String[] projection;
 
 	public LSTable() {
+		lazyColumns = new HashSet<String>();
+		offloadThresholds = new HashMap<String, Integer>();
+		compressThresholds = new HashMap<String, Integer>();
+		indexedColumns = new ArrayList<String>();
 		columns = parseColumns();
-		currentRow = new ContentValues();
+		projection = buildProjection();
 	}
 
 	/**
@@ -56,17 +102,20 @@ public abstract class LSTable<T extends LSObject> {
 	/**
 	 * Populates a row for the table with values. Used inside LSStorage and can
 	 * be used externally to check the mappings between columns and object
-	 * values
+	 * values. Safe to call from several threads at once; each call gets a row
+	 * of its own
 	 * 
 	 * @param object
 	 *            The {@code LSObject} to populate the row with
 	 * @return {@link ContentValues} corresponding to each row name and its
 	 *         value
 	 */
-	public final ContentValues createRow(T object) {
-		currentRow.clear();
+	public final synchronized ContentValues createRow(T object) {
+		currentRow = new ContentValues();
 		in(object);
-		return currentRow;
+		if (versionColumn != null && currentRow.get(versionColumn) == null)
+			currentRow.put(versionColumn, 1L);
+		return compress(currentRow);
 	}
 
 	/**
@@ -78,6 +127,48 @@ public abstract class LSTable<T extends LSObject> {
 		return this.getClass().getSimpleName();
 	}
 
+	/**
+	 * Where the rows of this table are kept. Override to keep a small table
+	 * which is read constantly in memory. Objects found in a
+	 * {@link #STORAGE_MIRRORED} table are shared between callers, so treat
+	 * them as immutable, and only write to the table through the
+	 * {@link LSController}
+	 * 
+	 * @return One of {@link #STORAGE_DISK}, {@link #STORAGE_MEMORY} or
+	 *         {@link #STORAGE_MIRRORED}
+	 */
+	public int getStorageMode() {
+		return STORAGE_DISK;
+	}
+
+	/**
+	 * Whether deleting from this table only marks rows as deleted, in the
+	 * {@link #_DELETED} column, instead of removing them. Soft deleted rows
+	 * are left out of everything the {@link LSController} reads, and are
+	 * removed for good by {@link LSController#runMaintenance}. Override to
+	 * turn it on; existing tables need the column adding in
+	 * {@link LSDatabase#onUpgrade}
+	 * 
+	 * @return {@code true} if the table soft deletes
+	 */
+	public boolean isSoftDelete() {
+		return false;
+	}
+
+	/**
+	 * Whether writes to this table are recorded in a change log, read with
+	 * {@link LSController#changesSince}. The log is kept by triggers, so it
+	 * catches every write, and holds only the latest change to each row.
+	 * Override to turn it on; existing tables need
+	 * {@link #getCreateStatements} running in {@link LSDatabase#onUpgrade},
+	 * which also logs every existing row as an insert
+	 * 
+	 * @return {@code true} if the table keeps a change log
+	 */
+	public boolean isChangeLogged() {
+		return false;
+	}
+
 	/**
 	 * Get a map of the column names and their datatypes.
 	 * 
@@ -87,6 +178,81 @@ public abstract class LSTable<T extends LSObject> {
 		return columns;
 	}
 
+	/**
+	 * Whether a column is lazy, i.e. left out of {@link #getProjection}. See
+	 * {@link Column#lazy}
+	 * 
+	 * @param column
+	 *            The column name
+	 * @return {@code true} if the column is lazy
+	 */
+	public boolean isLazy(String column) {
+		return lazyColumns.contains(column);
+	}
+
+	/**
+	 * Get the size in bytes above which a column's values are offloaded to
+	 * files. See {@link Column#offload}
+	 * 
+	 * @param column
+	 *            The column name
+	 * @return The threshold in bytes, or 0 if the column is never offloaded
+	 */
+	public int getOffloadThreshold(String column) {
+		Integer threshold = offloadThresholds.get(column);
+		return threshold == null ? 0 : threshold;
+	}
+
+	/**
+	 * Whether a column is compressed. See {@link Column#compress}
+	 * 
+	 * @param column
+	 *            The column name
+	 * @return {@code true} if the column is compressed
+	 */
+	public boolean isCompressed(String column) {
+		return compressThresholds.containsKey(column);
+	}
+
+	/**
+	 * Get the columns with an in-process index. See {@link Column#index}
+	 * 
+	 * @return A List of column names
+	 */
+	public List<String> getIndexedColumns() {
+		return indexedColumns;
+	}
+
+	/**
+	 * Whether a column has an in-process index. See {@link Column#index}
+	 * 
+	 * @param column
+	 *            The column name
+	 * @return {@code true} if the column is indexed
+	 */
+	public boolean isIndexed(String column) {
+		return indexedColumns.contains(column);
+	}
+
+	/**
+	 * Get the column holding each row's version. See {@link Column#version}
+	 * 
+	 * @return The column name, or {@code null} if the table isn't versioned
+	 */
+	public String getVersionColumn() {
+		return versionColumn;
+	}
+
+	/**
+	 * Get the columns read by default when finding objects: {@code _id} and
+	 * every column which isn't lazy
+	 * 
+	 * @return An array of column names
+	 */
+	public String[] getProjection() {
+		return projection;
+	}
+
 	/**
 	 * Get the SQL CREATE statement for this table. Override at your own risk!!
 	 * 
@@ -109,10 +275,80 @@ public abstract class LSTable<T extends LSObject> {
 			statement += entry.getValue();
 		}
 
+		// Add the tombstone column
+		if (isSoftDelete())
+			statement += ", " + _DELETED + " INTEGER";
+
 		statement += ")";
 		return statement;
 	}
 
+	/**
+	 * Get every SQL statement needed to create this table, in order. By default
+	 * this is {@link #getCreateStatement} plus the triggers of a versioned or
+	 * change logged table; tables which need other indexes or triggers as well
+	 * (see {@link LSView}) add them here. Use this when adding a table in
+	 * {@link LSDatabase#onUpgrade}
+	 * 
+	 * @return An array of SQL statements, to be executed in order
+	 */
+	public String[] getCreateStatements() {
+		List<String> statements = new ArrayList<String>();
+		statements.add(getCreateStatement());
+		if (versionColumn != null)
+			statements.add("CREATE TRIGGER IF NOT EXISTS " + getName()
+					+ "_version AFTER UPDATE ON " + getName() + " WHEN NEW."
+					+ versionColumn + " IS OLD." + versionColumn
+					+ " BEGIN UPDATE " + getName() + " SET " + versionColumn
+					+ " = COALESCE(OLD." + versionColumn
+					+ ", 0) + 1 WHERE _id = NEW._id; END");
+		if (isChangeLogged())
+			statements.addAll(Arrays.asList(getChangeLogStatements()));
+		return statements.toArray(new String[statements.size()]);
+	}
+
+	/**
+	 * The change log's table and triggers, and its first entries. See
+	 * {@link #isChangeLogged}
+	 */
+	private String[] getChangeLogStatements() {
+		String log = getName() + CHANGES_SUFFIX;
+		String live = isSoftDelete() ? " WHERE " + _DELETED + " IS NULL" : "";
+		String updated = isSoftDelete() ? "CASE WHEN NEW." + _DELETED
+				+ " IS NULL THEN " + LSChange.UPDATE + " ELSE "
+				+ LSChange.DELETE + " END" : Integer.toString(LSChange.UPDATE);
+		return new String[] {
+				"CREATE TABLE IF NOT EXISTS " + log
+						+ "(seq INTEGER PRIMARY KEY AUTOINCREMENT, row_id INTEGER UNIQUE, operation INTEGER)",
+				"CREATE TRIGGER IF NOT EXISTS " + log + "_insert AFTER INSERT ON "
+						+ getName() + " BEGIN " + logChange("NEW._id",
+								Integer.toString(LSChange.INSERT)) + " END",
+				"CREATE TRIGGER IF NOT EXISTS " + log + "_update AFTER UPDATE ON "
+						+ getName() + " BEGIN " + logChange("NEW._id", updated)
+						+ " END",
+				"CREATE TRIGGER IF NOT EXISTS " + log + "_delete AFTER DELETE ON "
+						+ getName()
+						+ (isSoftDelete() ? " WHEN OLD." + _DELETED
+								+ " IS NULL" : "") + " BEGIN "
+						+ logChange("OLD._id", Integer.toString(LSChange.DELETE))
+						+ " END",
+				"INSERT OR IGNORE INTO " + log + "(row_id, operation) SELECT _id, "
+						+ LSChange.INSERT + " FROM " + getName() + live
+						+ " ORDER BY _id" };
+	}
+
+	/**
+	 * Statements to replace a row's entry in the change log with a newer one,
+	 * for use inside a trigger. Deleting first rather than INSERT OR REPLACE
+	 * means an OR clause on the outer statement can't stop the log updating
+	 */
+	private String logChange(String id, String operation) {
+		String log = getName() + CHANGES_SUFFIX;
+		return "DELETE FROM " + log + " WHERE row_id = " + id + "; INSERT INTO "
+				+ log + "(row_id, operation) VALUES(" + id + ", " + operation
+				+ ");";
+	}
+
 	/**
 	 * To be called inside {@link #in}. Maps a column name to a {@code int}
 	 * 
@@ -125,6 +361,31 @@ public abstract class LSTable<T extends LSObject> {
 		currentRow.put(column, value);
 	}
 
+	/**
+	 * To be called inside {@link #in}. Maps a column name to a {@code long}
+	 * 
+	 * @param column
+	 *            The column name
+	 * @param value
+	 *            The {@code long} value
+	 */
+	protected final void putValue(String column, long value) {
+		currentRow.put(column, value);
+	}
+
+	/**
+	 * To be called inside {@link #in}. Maps a column name to a {@code boolean},
+	 * stored as 1 or 0 in an INTEGER column
+	 * 
+	 * @param column
+	 *            The column name
+	 * @param value
+	 *            The {@code boolean} value
+	 */
+	protected final void putValue(String column, boolean value) {
+		currentRow.put(column, value ? 1L : 0L);
+	}
+
 	/**
 	 * To be called inside {@link #in}. Maps a column name to a {@code float}
 	 * 
@@ -137,6 +398,18 @@ public abstract class LSTable<T extends LSObject> {
 		currentRow.put(column, value);
 	}
 
+	/**
+	 * To be called inside {@link #in}. Maps a column name to a {@code double}
+	 * 
+	 * @param column
+	 *            The column name
+	 * @param value
+	 *            The {@code double} value
+	 */
+	protected final void putValue(String column, double value) {
+		currentRow.put(column, value);
+	}
+
 	/**
 	 * To be called inside {@link #in}. Maps a column name to a {@code string}
 	 * 
@@ -149,16 +422,114 @@ public abstract class LSTable<T extends LSObject> {
 		currentRow.put(column, value);
 	}
 
+	/**
+	 * To be called inside {@link #in}. Maps a column name to a {@code byte[]}
+	 * 
+	 * @param column
+	 *            The column name
+	 * @param value
+	 *            The {@code byte[]} value
+	 */
+	protected final void putValue(String column, byte[] value) {
+		currentRow.put(column, value);
+	}
+
+	/**
+	 * To be called inside {@link #in}. Maps a column name to the remaining
+	 * bytes of a {@link ByteBuffer}. The buffer's position is left untouched
+	 * 
+	 * @param column
+	 *            The column name
+	 * @param value
+	 *            The {@link ByteBuffer} value
+	 */
+	protected final void putValue(String column, ByteBuffer value) {
+		if (value == null) {
+			currentRow.putNull(column);
+			return;
+		}
+		byte[] bytes = new byte[value.remaining()];
+		value.duplicate().get(bytes);
+		currentRow.put(column, bytes);
+	}
+
+	/**
+	 * To be called inside {@link #in}. Maps a column name to a {@link Date},
+	 * stored as milliseconds since the epoch in an INTEGER column. Read it back
+	 * with {@link #getAsDate}
+	 * 
+	 * @param column
+	 *            The column name
+	 * @param value
+	 *            The {@link Date} value
+	 */
+	protected final void putValue(String column, Date value) {
+		if (value == null)
+			currentRow.putNull(column);
+		else
+			currentRow.put(column, value.getTime());
+	}
+
+	/**
+	 * To be called inside {@link #out}. Gets a {@link Date} stored with
+	 * {@link #putValue(String, Date)}
+	 * 
+	 * @param values
+	 *            The {@link ContentValues} passed to {@link #out}
+	 * @param column
+	 *            The column name
+	 * @return The {@link Date}, or {@code null} if the column is NULL
+	 */
+	public static Date getAsDate(ContentValues values, String column) {
+		Long millis = values.getAsLong(column);
+		return millis == null ? null : new Date(millis);
+	}
+
+	/**
+	 * To be called inside {@link #out}. Gets a {@code boolean} stored with
+	 * {@link #putValue(String, boolean)}
+	 * 
+	 * @param values
+	 *            The {@link ContentValues} passed to {@link #out}
+	 * @param column
+	 *            The column name
+	 * @return {@code true} if the column is non-zero, {@code false} if it is
+	 *         zero or NULL
+	 */
+	public static boolean getAsBoolean(ContentValues values, String column) {
+		Long value = values.getAsLong(column);
+		return value != null && value != 0L;
+	}
+
 	private Map<String, String> parseColumns() {
 		Map<String, String> toReturn = new LinkedHashMap<String, String>();
-		Field[] fields = this.getClass().getDeclaredFields();
+		// Include the columns of any LSTable this one extends
+		List<Field> fields = new ArrayList<Field>();
+		for (Class<?> c = getClass(); c != LSTable.class; c = c
+				.getSuperclass()) {
+			fields.addAll(Arrays.asList(c.getDeclaredFields()));
+		}
 		for (Field f : fields) {
 			Column column = f.getAnnotation(Column.class);
 			if (column == null)
 				continue;
 			try {
-				toReturn.put((String) f.get(this),
-						columnDatatype(column.value()));
+				String name = (String) f.get(this);
+				toReturn.put(name, columnDatatype(column.value()));
+				if (column.offload() > 0)
+					offloadThresholds.put(name, column.offload());
+				if (column.lazy() || column.offload() > 0)
+					lazyColumns.add(name);
+				String type = toReturn.get(name);
+				if (column.compress()
+						&& (type.equals(TEXT) || type.equals(BLOB)))
+					compressThresholds.put(name, column.compressAbove());
+				if (column.index() && !compressThresholds.containsKey(name)
+						&& (type.equals(INTEGER) || type.equals(TEXT)))
+					indexedColumns.add(name);
+				if (column.version() && versionColumn == null
+						&& type.equals(INTEGER))
+					versionColumn = name;
 			} catch (Exception e) {
 				e.printStackTrace();
 			}
@@ -166,6 +537,48 @@ public abstract class LSTable<T extends LSObject> {
 		return toReturn;
 	}
 
+	/**
+	 * Compresses the values of compressed columns which are over their
+	 * threshold. The given values are copied rather than changed if any are
+	 * compressed
+	 */
+	final ContentValues compress(ContentValues values) {
+		ContentValues toReturn = values;
+		for (Entry<String, Integer> column : compressThresholds.entrySet()) {
+			byte[] value = rawBytes(values.get(column.getKey()));
+			if (value == null
+					|| !LSCompression.shouldCompress(value, column.getValue()))
+				continue;
+			if (toReturn == values)
+				toReturn = new ContentValues(values);
+			toReturn.put(column.getKey(), LSCompression.compress(value));
+		}
+		return toReturn;
+	}
+
+	private byte[] rawBytes(Object value) {
+		if (value instanceof byte[])
+			return (byte[]) value;
+		if (value instanceof String) {
+			try {
+				return ((String) value).getBytes("UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				throw new IllegalStateException(e.getMessage());
+			}
+		}
+		return null;
+	}
+
+	private String[] buildProjection() {
+		List<String> toReturn = new ArrayList<String>();
+		toReturn.add(LSObject._ID);
+		for (String column : columns.keySet()) {
+			if (!lazyColumns.contains(column))
+				toReturn.add(column);
+		}
+		return toReturn.toArray(new String[toReturn.size()]);
+	}
+
 	private String columnDatatype(String string) {
 		if (string.toUpperCase(Locale.ENGLISH).contains(NULL))
 			return NULL;
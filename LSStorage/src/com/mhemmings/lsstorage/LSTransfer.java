@@ -0,0 +1,441 @@
+package com.mhemmings.lsstorage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * The stream formats behind {@link LSController#exportTable} and
+ * {@link LSController#importTable}. Both are written and read one cell at a
+ * time, so no more than a single value is ever held in memory.
+ * 
+ * The binary format is a header ("LSX1", the column count and each column
+ * name) followed by rows. Each row starts with a 1 byte, each cell is a type
+ * byte followed by its value, and a 0 byte ends the stream.
+ * 
+ * The CSV format has a header line of column names. NULL is an empty field,
+ * TEXT is always quoted, INTEGER and REAL are bare and BLOBs are written as
+ * SQL hex literals, e.g. X'00FF'
+ */
+final class LSTransfer {
+	private static final int MAGIC = 0x4C535831; // "LSX1"
+	private static final byte ROW = 1;
+	private static final byte END = 0;
+	private static final byte TYPE_NULL = 0;
+	private static final byte TYPE_INTEGER = 1;
+	private static final byte TYPE_REAL = 2;
+	private static final byte TYPE_TEXT = 3;
+	private static final byte TYPE_BLOB = 4;
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+	private LSTransfer() {
+	}
+
+	static RowWriter writer(int format, OutputStream out, String[] columns)
+			throws IOException {
+		if (format == LSController.FORMAT_BINARY)
+			return new BinaryWriter(out, columns);
+		if (format == LSController.FORMAT_CSV)
+			return new CsvWriter(out, columns);
+		throw new IllegalArgumentException("Unknown format " + format);
+	}
+
+	static RowReader reader(int format, InputStream in, BlobBinder blobs)
+			throws IOException {
+		if (format == LSController.FORMAT_BINARY)
+			return new BinaryReader(in, blobs);
+		if (format == LSController.FORMAT_CSV)
+			return new CsvReader(in, blobs);
+		throw new IllegalArgumentException("Unknown format " + format);
+	}
+
+	/**
+	 * Writes rows a cell at a time, in column order
+	 */
+	abstract static class RowWriter {
+		abstract void writeNull() throws IOException;
+
+		abstract void writeLong(long value) throws IOException;
+
+		abstract void writeDouble(double value) throws IOException;
+
+		abstract void writeText(String value) throws IOException;
+
+		abstract void writeBlob(byte[] value) throws IOException;
+
+		abstract void endRow() throws IOException;
+
+		/**
+		 * Flushes the stream. The stream is not closed
+		 */
+		abstract void finish() throws IOException;
+	}
+
+	/**
+	 * Binds the BLOBs read by a {@link RowReader}, so they can be stored
+	 * somewhere other than the row
+	 */
+	interface BlobBinder {
+		void bindBlob(SQLiteStatement statement, int index, String column,
+				byte[] value) throws IOException;
+	}
+
+	/**
+	 * Reads rows straight into the bindings of an INSERT statement
+	 */
+	abstract static class RowReader {
+		private final BlobBinder blobs;
+
+		RowReader(BlobBinder blobs) {
+			this.blobs = blobs;
+		}
+
+		/**
+		 * The column names from the stream's header, in the order their
+		 * values are bound
+		 */
+		abstract String[] columns();
+
+		/**
+		 * Binds the next row's values to parameters 1..n of a statement
+		 * 
+		 * @return {@code false} if there are no more rows
+		 */
+		abstract boolean readRow(SQLiteStatement statement) throws IOException;
+
+		void bindBlob(SQLiteStatement statement, int index, byte[] value)
+				throws IOException {
+			blobs.bindBlob(statement, index, columns()[index - 1], value);
+		}
+	}
+
+	private static final class BinaryWriter extends RowWriter {
+		private final DataOutputStream out;
+		private boolean rowStarted;
+
+		private BinaryWriter(OutputStream out, String[] columns)
+				throws IOException {
+			this.out = new DataOutputStream(new BufferedOutputStream(out));
+			this.out.writeInt(MAGIC);
+			this.out.writeInt(columns.length);
+			for (String column : columns) {
+				this.out.writeUTF(column);
+			}
+		}
+
+		private void cell(byte type) throws IOException {
+			if (!rowStarted) {
+				out.writeByte(ROW);
+				rowStarted = true;
+			}
+			out.writeByte(type);
+		}
+
+		@Override
+		void writeNull() throws IOException {
+			cell(TYPE_NULL);
+		}
+
+		@Override
+		void writeLong(long value) throws IOException {
+			cell(TYPE_INTEGER);
+			out.writeLong(value);
+		}
+
+		@Override
+		void writeDouble(double value) throws IOException {
+			cell(TYPE_REAL);
+			out.writeDouble(value);
+		}
+
+		@Override
+		void writeText(String value) throws IOException {
+			byte[] bytes = value.getBytes("UTF-8");
+			cell(TYPE_TEXT);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+
+		@Override
+		void writeBlob(byte[] value) throws IOException {
+			cell(TYPE_BLOB);
+			out.writeInt(value.length);
+			out.write(value);
+		}
+
+		@Override
+		void endRow() {
+			rowStarted = false;
+		}
+
+		@Override
+		void finish() throws IOException {
+			out.writeByte(END);
+			out.flush();
+		}
+	}
+
+	private static final class BinaryReader extends RowReader {
+		private final DataInputStream in;
+		private final String[] columns;
+
+		private BinaryReader(InputStream in, BlobBinder blobs)
+				throws IOException {
+			super(blobs);
+			this.in = new DataInputStream(new BufferedInputStream(in));
+			if (this.in.readInt() != MAGIC)
+				throw new IOException("Not an LSStorage export");
+			columns = new String[this.in.readInt()];
+			for (int i = 0; i < columns.length; i++) {
+				columns[i] = this.in.readUTF();
+			}
+		}
+
+		@Override
+		String[] columns() {
+			return columns;
+		}
+
+		@Override
+		boolean readRow(SQLiteStatement statement) throws IOException {
+			byte marker = in.readByte();
+			if (marker == END)
+				return false;
+			if (marker != ROW)
+				throw new IOException("Corrupt export");
+			for (int i = 1; i <= columns.length; i++) {
+				byte type = in.readByte();
+				switch (type) {
+				case TYPE_NULL:
+					statement.bindNull(i);
+					break;
+				case TYPE_INTEGER:
+					statement.bindLong(i, in.readLong());
+					break;
+				case TYPE_REAL:
+					statement.bindDouble(i, in.readDouble());
+					break;
+				case TYPE_TEXT:
+					statement.bindString(i, new String(readBytes(), "UTF-8"));
+					break;
+				case TYPE_BLOB:
+					bindBlob(statement, i, readBytes());
+					break;
+				default:
+					throw new IOException("Corrupt export");
+				}
+			}
+			return true;
+		}
+
+		private byte[] readBytes() throws IOException {
+			byte[] bytes = new byte[in.readInt()];
+			in.readFully(bytes);
+			return bytes;
+		}
+	}
+
+	private static final class CsvWriter extends RowWriter {
+		private final Writer out;
+		private boolean firstCell = true;
+
+		private CsvWriter(OutputStream out, String[] columns)
+				throws IOException {
+			this.out = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+			for (String column : columns) {
+				separator();
+				this.out.write(column);
+			}
+			endRow();
+		}
+
+		private void separator() throws IOException {
+			if (!firstCell)
+				out.write(',');
+			firstCell = false;
+		}
+
+		@Override
+		void writeNull() throws IOException {
+			separator();
+		}
+
+		@Override
+		void writeLong(long value) throws IOException {
+			separator();
+			out.write(Long.toString(value));
+		}
+
+		@Override
+		void writeDouble(double value) throws IOException {
+			separator();
+			out.write(Double.toString(value));
+		}
+
+		@Override
+		void writeText(String value) throws IOException {
+			separator();
+			out.write('"');
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				if (c == '"')
+					out.write('"');
+				out.write(c);
+			}
+			out.write('"');
+		}
+
+		@Override
+		void writeBlob(byte[] value) throws IOException {
+			separator();
+			out.write("X'");
+			for (byte b : value) {
+				out.write(HEX[(b >> 4) & 0xF]);
+				out.write(HEX[b & 0xF]);
+			}
+			out.write('\'');
+		}
+
+		@Override
+		void endRow() throws IOException {
+			out.write("\r\n");
+			firstCell = true;
+		}
+
+		@Override
+		void finish() throws IOException {
+			out.flush();
+		}
+	}
+
+	private static final class CsvReader extends RowReader {
+		private final BufferedReader in;
+		private final String[] columns;
+		private final StringBuilder field = new StringBuilder();
+		private boolean quoted;
+		private boolean endOfRow;
+
+		private CsvReader(InputStream in, BlobBinder blobs) throws IOException {
+			super(blobs);
+			this.in = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+			List<String> header = new ArrayList<String>();
+			do {
+				if (!readField())
+					throw new IOException("Empty CSV");
+				header.add(field.toString());
+			} while (!endOfRow);
+			columns = header.toArray(new String[header.size()]);
+		}
+
+		@Override
+		String[] columns() {
+			return columns;
+		}
+
+		@Override
+		boolean readRow(SQLiteStatement statement) throws IOException {
+			for (int i = 1; i <= columns.length; i++) {
+				if (!readField()) {
+					if (i == 1)
+						return false;
+					throw new EOFException("Truncated CSV row");
+				}
+				if (endOfRow != (i == columns.length))
+					throw new IOException("Wrong number of CSV fields");
+				bind(statement, i);
+			}
+			return true;
+		}
+
+		private void bind(SQLiteStatement statement, int index)
+				throws IOException {
+			if (quoted) {
+				statement.bindString(index, field.toString());
+				return;
+			}
+			String value = field.toString();
+			if (value.length() == 0)
+				statement.bindNull(index);
+			else if (value.startsWith("X'") && value.endsWith("'"))
+				bindBlob(statement, index,
+						hex(value.substring(2, value.length() - 1)));
+			else if (isInteger(value))
+				statement.bindLong(index, Long.parseLong(value));
+			else
+				statement.bindDouble(index, Double.parseDouble(value));
+		}
+
+		private boolean isInteger(String value) {
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				if ((c < '0' || c > '9') && !(i == 0 && c == '-'))
+					return false;
+			}
+			return true;
+		}
+
+		private byte[] hex(String value) throws IOException {
+			if (value.length() % 2 != 0)
+				throw new IOException("Bad BLOB literal");
+			byte[] bytes = new byte[value.length() / 2];
+			for (int i = 0; i < bytes.length; i++) {
+				bytes[i] = (byte) Integer.parseInt(
+						value.substring(i * 2, i * 2 + 2), 16);
+			}
+			return bytes;
+		}
+
+		/**
+		 * Reads the next field into {@link #field}
+		 * 
+		 * @return {@code false} at the end of the stream
+		 */
+		private boolean readField() throws IOException {
+			field.setLength(0);
+			quoted = false;
+			int c = in.read();
+			if (c == -1)
+				return false;
+			if (c == '"') {
+				quoted = true;
+				while (true) {
+					c = in.read();
+					if (c == -1)
+						throw new EOFException("Unterminated CSV field");
+					if (c == '"') {
+						c = in.read();
+						if (c != '"')
+							break;
+					}
+					field.append((char) c);
+				}
+			} else {
+				while (c != ',' && c != '\r' && c != '\n' && c != -1) {
+					field.append((char) c);
+					c = in.read();
+				}
+			}
+			if (c == '\r') {
+				in.mark(1);
+				if (in.read() != '\n')
+					in.reset();
+			}
+			endOfRow = c != ',';
+			return true;
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package com.mhemmings.lsstorage;
+
+/**
+ * The outcome of {@link LSController#updateVersioned}
+ * 
+ * @param <T>
+ *            The type of {@link LSObject} stored in the table
+ */
+public final class LSUpdateResult<T extends LSObject> {
+	/**
+	 * The row was at the expected version and has been updated
+	 */
+	public static final int UPDATED = 0;
+	/**
+	 * Someone else updated the row first. Nothing was changed
+	 */
+	public static final int CONFLICT = 1;
+	/**
+	 * The row doesn't exist, or has been deleted
+	 */
+	public static final int NOT_FOUND = 2;
+	/**
+	 * An error occurred. Nothing was changed
+	 */
+	public static final int FAILED = 3;
+
+	private final int status;
+	private final long version;
+	private final T current;
+
+	LSUpdateResult(int status, long version, T current) {
+		this.status = status;
+		this.version = version;
+		this.current = current;
+	}
+
+	/**
+	 * Gets what happened
+	 * 
+	 * @return One of {@link #UPDATED}, {@link #CONFLICT}, {@link #NOT_FOUND}
+	 *         or {@link #FAILED}
+	 */
+	public int getStatus() {
+		return status;
+	}
+
+	/**
+	 * Whether the row was updated
+	 * 
+	 * @return {@code true} if the status is {@link #UPDATED}
+	 */
+	public boolean isUpdated() {
+		return status == UPDATED;
+	}
+
+	/**
+	 * Whether someone else updated the row first
+	 * 
+	 * @return {@code true} if the status is {@link #CONFLICT}
+	 */
+	public boolean isConflict() {
+		return status == CONFLICT;
+	}
+
+	/**
+	 * Gets the row's version: the new one once {@link #UPDATED}, or the one it
+	 * is at now after a {@link #CONFLICT}. Pass it to the next
+	 * {@link LSController#updateVersioned}
+	 * 
+	 * @return The version, or -1 if there is no row
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Gets the row as someone else left it, to merge with before trying again
+	 * 
+	 * @return The {@link LSObject} after a {@link #CONFLICT}, otherwise
+	 *         {@code null}
+	 */
+	public T getCurrent() {
+		return current;
+	}
+}
@@ -0,0 +1,243 @@
+package com.mhemmings.lsstorage;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A materialized view: a real table holding one row per group of another
+ * {@link LSTable}, kept up to date by SQLite triggers whenever the source
+ * table is written to, so reading aggregates costs no more than any other
+ * {@link LSController#find}. Never write to a view yourself.
+ * 
+ * COUNT, SUM, MIN and MAX of a single column (or COUNT(*)) are maintained
+ * incrementally: each write adjusts the row of its group with a few index
+ * lookups, however big the group is. Any other aggregate, and a MIN or MAX
+ * whose extreme row is removed, is recomputed from the rows of the group it
+ * touched, which makes bulk writes to large groups slow. A SUM whose group
+ * loses its last non-NULL value reads 0 rather than NULL
+ * 
+ * Declare the group column and one column per aggregate with {@link Column},
+ * just like a table. Views must come after their source table in
+ * {@link LSDatabase#tables}
+ * 
+ * @param <T>
+ *            The type of {@link LSObject} to store in this view
+ */
+public abstract class LSView<T extends LSObject> extends LSTable<T> {
+	/**
+	 * An aggregate which can be maintained incrementally
+	 */
+	private static final Pattern INCREMENTAL = Pattern.compile(
+			"^\\s*(COUNT|SUM|MIN|MAX)\\s*\\(\\s*(\\*|\\w+)\\s*\\)\\s*$",
+			Pattern.CASE_INSENSITIVE);
+
+	/**
+	 * The table this view is computed from
+	 * 
+	 * @return The source {@link LSTable}
+	 */
+	public abstract LSTable<? extends LSObject> getSource();
+
+	/**
+	 * The column the source table is grouped by. The view must declare a
+	 * column with the same name, holding one row per distinct value
+	 * 
+	 * @return The group column name
+	 */
+	public abstract String getGroupColumn();
+
+	/**
+	 * How each of the other view columns is computed from a group of source
+	 * rows, e.g. {@code "COUNT(*)"} or {@code "MAX(_id)"}
+	 * 
+	 * @return A Map of view column names to SQL aggregate expressions
+	 */
+	public abstract Map<String, String> getAggregates();
+
+	/**
+	 * Creates the view's table, an index on the group column of both tables,
+	 * the triggers which maintain the view and the rows for any existing data
+	 * in the source table. Triggers from an earlier version of the view are
+	 * replaced, so running these again rebuilds the view
+	 */
+	@Override
+	public String[] getCreateStatements() {
+		String source = getSource().getName();
+		String group = getGroupColumn();
+		boolean soft = getSource().isSoftDelete();
+		List<String> statements = new ArrayList<String>();
+		statements.add(getCreateStatement());
+		statements.add("CREATE UNIQUE INDEX IF NOT EXISTS " + getName() + "_"
+				+ group + " ON " + getName() + "(" + group + ")");
+		statements.add("CREATE INDEX IF NOT EXISTS " + source + "_" + group
+				+ " ON " + source + "(" + group + ")");
+		for (String trigger : new String[] { "_insert", "_delete", "_update",
+				"_update_old", "_update_new" }) {
+			statements.add("DROP TRIGGER IF EXISTS " + getName() + trigger);
+		}
+		statements.add(trigger("_insert", "INSERT", soft ? "NEW." + _DELETED
+				+ " IS NULL" : null, addRow("NEW")));
+		statements.add(trigger("_delete", "DELETE", soft ? "OLD." + _DELETED
+				+ " IS NULL" : null, removeRow("OLD")));
+		statements.add(trigger("_update_old", "UPDATE", soft ? "OLD."
+				+ _DELETED + " IS NULL" : null, removeRow("OLD")));
+		statements.add(trigger("_update_new", "UPDATE", soft ? "NEW."
+				+ _DELETED + " IS NULL" : null, addRow("NEW")));
+		statements.add("DELETE FROM " + getName());
+		statements.add(insertGroups(null));
+		return statements.toArray(new String[statements.size()]);
+	}
+
+	private String trigger(String suffix, String event, String when,
+			String body) {
+		return "CREATE TRIGGER IF NOT EXISTS " + getName() + suffix
+				+ " AFTER " + event + " ON " + getSource().getName()
+				+ (when == null ? "" : " WHEN " + when) + " BEGIN " + body
+				+ " END";
+	}
+
+	/**
+	 * Statements to add a source row, {@code NEW} or {@code OLD}, to its
+	 * group, creating the group's row if it is the first
+	 */
+	private String addRow(String row) {
+		String value = row + "." + getGroupColumn();
+		StringBuilder columns = new StringBuilder(getGroupColumn());
+		StringBuilder empty = new StringBuilder(value);
+		StringBuilder changes = new StringBuilder();
+		for (Entry<String, String> aggregate : getAggregates().entrySet()) {
+			String column = aggregate.getKey();
+			Matcher incremental = INCREMENTAL.matcher(aggregate.getValue());
+			String function = incremental.matches() ? incremental.group(1)
+					.toUpperCase(Locale.ENGLISH) : null;
+			String argument = incremental.matches() ? row + "."
+					+ incremental.group(2) : null;
+			columns.append(", ").append(column);
+			empty.append(", ").append("COUNT".equals(function) ? "0" : "NULL");
+			if (changes.length() > 0)
+				changes.append(", ");
+			changes.append(column).append(" = ");
+			if (function == null)
+				changes.append(recompute(aggregate.getValue(), value));
+			else if (function.equals("COUNT") && argument.endsWith("*"))
+				changes.append(column).append(" + 1");
+			else if (function.equals("COUNT"))
+				changes.append(column).append(" + (").append(argument)
+						.append(" IS NOT NULL)");
+			else if (function.equals("SUM"))
+				changes.append("CASE WHEN ").append(argument)
+						.append(" IS NULL THEN ").append(column)
+						.append(" ELSE COALESCE(").append(column)
+						.append(", 0) + ").append(argument).append(" END");
+			else
+				changes.append("CASE WHEN ").append(argument)
+						.append(" IS NULL THEN ").append(column)
+						.append(" WHEN ").append(column)
+						.append(" IS NULL OR ").append(argument)
+						.append(function.equals("MAX") ? " > " : " < ")
+						.append(column).append(" THEN ").append(argument)
+						.append(" ELSE ").append(column).append(" END");
+		}
+		return "INSERT INTO " + getName() + "(" + columns + ") SELECT "
+				+ empty + " WHERE NOT EXISTS (SELECT 1 FROM " + getName()
+				+ " WHERE " + getGroupColumn() + " IS " + value + "); "
+				+ update(changes, value);
+	}
+
+	/**
+	 * Statements to take a source row, {@code NEW} or {@code OLD}, out of its
+	 * group, removing the group's row if it was the last
+	 */
+	private String removeRow(String row) {
+		String value = row + "." + getGroupColumn();
+		StringBuilder changes = new StringBuilder();
+		for (Entry<String, String> aggregate : getAggregates().entrySet()) {
+			String column = aggregate.getKey();
+			Matcher incremental = INCREMENTAL.matcher(aggregate.getValue());
+			String function = incremental.matches() ? incremental.group(1)
+					.toUpperCase(Locale.ENGLISH) : null;
+			String argument = incremental.matches() ? row + "."
+					+ incremental.group(2) : null;
+			if (changes.length() > 0)
+				changes.append(", ");
+			changes.append(column).append(" = ");
+			if (function == null)
+				changes.append(recompute(aggregate.getValue(), value));
+			else if (function.equals("COUNT") && argument.endsWith("*"))
+				changes.append(column).append(" - 1");
+			else if (function.equals("COUNT"))
+				changes.append(column).append(" - (").append(argument)
+						.append(" IS NOT NULL)");
+			else if (function.equals("SUM"))
+				changes.append("CASE WHEN ").append(argument)
+						.append(" IS NULL THEN ").append(column)
+						.append(" ELSE ").append(column).append(" - ")
+						.append(argument).append(" END");
+			else
+				// Only a removed extreme changes MIN or MAX
+				changes.append("CASE WHEN ").append(column).append(" IS ")
+						.append(argument).append(" THEN ")
+						.append(recompute(aggregate.getValue(), value))
+						.append(" ELSE ").append(column).append(" END");
+		}
+		return update(changes, value) + " DELETE FROM " + getName()
+				+ " WHERE " + getGroupColumn() + " IS " + value
+				+ " AND NOT EXISTS (SELECT 1 FROM " + getSource().getName()
+				+ " WHERE " + live(value) + ");";
+	}
+
+	private String update(CharSequence changes, String value) {
+		return "UPDATE " + getName() + " SET " + changes + " WHERE "
+				+ getGroupColumn() + " IS " + value + ";";
+	}
+
+	/**
+	 * A subquery computing one aggregate over a single group
+	 */
+	private String recompute(String aggregate, String value) {
+		return "(SELECT " + aggregate + " FROM " + getSource().getName()
+				+ " WHERE " + live(value) + ")";
+	}
+
+	/**
+	 * Matches the live source rows of a group
+	 */
+	private String live(String value) {
+		String where = getGroupColumn() + " IS " + value;
+		if (getSource().isSoftDelete())
+			where += " AND " + _DELETED + " IS NULL";
+		return where;
+	}
+
+	/**
+	 * INSERT ... SELECT of the rows for a single group, or every group if the
+	 * value is {@code null}
+	 */
+	private String insertGroups(String value) {
+		String group = getGroupColumn();
+		StringBuilder columns = new StringBuilder(group);
+		StringBuilder expressions = new StringBuilder(group);
+		Iterator<Entry<String, String>> it = getAggregates().entrySet()
+				.iterator();
+		while (it.hasNext()) {
+			Entry<String, String> aggregate = it.next();
+			columns.append(", ").append(aggregate.getKey());
+			expressions.append(", ").append(aggregate.getValue());
+		}
+
+		String statement = "INSERT INTO " + getName() + "(" + columns
+				+ ") SELECT " + expressions + " FROM " + getSource().getName()
+				+ " WHERE 1";
+		if (value != null)
+			statement += " AND " + group + " IS " + value;
+		if (getSource().isSoftDelete())
+			statement += " AND " + _DELETED + " IS NULL";
+		return statement + " GROUP BY " + group;
+	}
+}
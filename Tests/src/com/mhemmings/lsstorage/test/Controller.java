@@ -1,11 +1,18 @@
 package com.mhemmings.lsstorage.test;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 
 import android.content.ContentValues;
 import android.content.Context;
 
+import com.mhemmings.lsstorage.LSChange;
 import com.mhemmings.lsstorage.LSController;
+import com.mhemmings.lsstorage.LSObject;
+import com.mhemmings.lsstorage.LSQueryStats;
+import com.mhemmings.lsstorage.LSUpdateResult;
 
 public class Controller extends LSController {
 
@@ -13,6 +20,10 @@ public class Controller extends LSController {
 		super(context, new MyDatabase());
 	}
 
+	public Controller(Context context, MyDatabase database) {
+		super(context, database);
+	}
+
 	public void addCar(Car car) {
 		save(MyDatabase.carTable, car);
 		save(MyDatabase.manufacturerTable, car.getManufacturer());
@@ -38,6 +49,14 @@ public class Controller extends LSController {
 		return c;
 	}
 
+	public void saveCars(Car[] cars) {
+		saveMany(MyDatabase.carTable, cars);
+	}
+
+	public ArrayList<Car> getAllCarsParallel(int threads) {
+		return findParallel(MyDatabase.carTable, null, threads, true);
+	}
+
 	public ArrayList<Car> getAllCars() {
 		ArrayList<Car> cars = findAll(MyDatabase.carTable);
 		return cars;
@@ -55,13 +74,252 @@ public class Controller extends LSController {
 		return delete(MyDatabase.carTable, where);
 	}
 
+	public long saveCar(Car car) {
+		return save(MyDatabase.carTable, car);
+	}
+
+	public int changeColours(long[] ids, String colour) {
+		ContentValues values = new ContentValues();
+		values.put(CarTable.colour, colour);
+		return updateByIds(MyDatabase.carTable, ids, values);
+	}
+
+	public int deleteCars(long[] ids) {
+		return deleteByIds(MyDatabase.carTable, ids);
+	}
+
+	public void addIndexedCars(Car[] cars) {
+		saveMany(MyDatabase.indexedCarTable, cars);
+		for (Car car : cars) {
+			save(MyDatabase.manufacturerTable, car.getManufacturer());
+		}
+	}
+
+	public Car getIndexedCar(String name) {
+		// Found through an index, so shared: copy it rather than change it
+		Car c = findIndexedCar(name);
+		return new Car(c.getName(), c.getColour(), findOne(
+				MyDatabase.manufacturerTable,
+				whereEquals(ManufacturerTable.id,
+						Integer.toString(c.getManufacturer().getId()))));
+	}
+
+	public Car findIndexedCar(String name) {
+		return findOne(MyDatabase.indexedCarTable,
+				whereEquals(IndexedCarTable.name, name));
+	}
+
+	public long saveIndexedCar(Car car) {
+		return save(MyDatabase.indexedCarTable, car);
+	}
+
+	public int changeIndexedColour(String name, String colour) {
+		ContentValues values = new ContentValues();
+		values.put(IndexedCarTable.colour, colour);
+		return update(MyDatabase.indexedCarTable, values,
+				whereEquals(IndexedCarTable.name, name));
+	}
+
+	public int deleteIndexedCar(String name) {
+		return delete(MyDatabase.indexedCarTable,
+				whereEquals(IndexedCarTable.name, name));
+	}
+
+	public int deleteIndexedCars(long[] ids) {
+		return deleteByIds(MyDatabase.indexedCarTable, ids);
+	}
+
+	public long addPhoto(Photo photo) {
+		return save(MyDatabase.photoTable, photo);
+	}
+
+	public void addPhotos(Photo[] photos) {
+		saveMany(MyDatabase.photoTable, photos);
+	}
+
+	public ArrayList<Photo> getAllPhotos() {
+		return findAll(MyDatabase.photoTable);
+	}
+
+	public InputStream openThumbnail(long id) throws IOException {
+		return openBlob(MyDatabase.photoTable, PhotoTable.thumbnail, id);
+	}
+
+	public InputStream openOriginal(long id) throws IOException {
+		return openBlob(MyDatabase.photoTable, PhotoTable.original, id);
+	}
+
+	public InputStream openDescription(long id) throws IOException {
+		return openBlob(MyDatabase.photoTable, PhotoTable.description, id);
+	}
+
+	public int purgePhotos() {
+		return purgeBlobFiles();
+	}
+
+	public ManufacturerStats getManufacturerStats(int manufacturerId) {
+		return findOne(MyDatabase.manufacturerStatsView, whereEquals(
+				ManufacturerStatsView.manufacturer_id,
+				Integer.toString(manufacturerId)));
+	}
+
+	public int exportCars(OutputStream out, int format) throws IOException {
+		return exportTable(MyDatabase.carTable, out, format);
+	}
+
+	public int importCars(InputStream in, int format) throws IOException {
+		return importTable(MyDatabase.carTable, in, format);
+	}
+
+	public int exportPhotos(OutputStream out) throws IOException {
+		return exportTable(MyDatabase.photoTable, out, FORMAT_BINARY);
+	}
+
+	public int importPhotos(InputStream in) throws IOException {
+		return importTable(MyDatabase.photoTable, in, FORMAT_BINARY);
+	}
+
+	public long addMirroredManufacturer(Manufacturer manufacturer) {
+		return save(MyDatabase.mirroredManufacturerTable, manufacturer);
+	}
+
+	public Manufacturer getMirroredManufacturer(long rowId) {
+		return findOne(MyDatabase.mirroredManufacturerTable,
+				whereEquals(LSObject._ID, Long.toString(rowId)));
+	}
+
+	public ArrayList<Manufacturer> getAllMirroredManufacturers() {
+		return findAll(MyDatabase.mirroredManufacturerTable);
+	}
+
+	public int renameMirroredManufacturer(long rowId, String name) {
+		ContentValues values = new ContentValues();
+		values.put(MirroredManufacturerTable.name, name);
+		return update(MyDatabase.mirroredManufacturerTable, values,
+				whereEquals(LSObject._ID, Long.toString(rowId)));
+	}
+
+	public void addMemoryCar(Car car) {
+		save(MyDatabase.memoryCarTable, car);
+	}
+
+	public ArrayList<Car> getAllMemoryCars() {
+		return findAll(MyDatabase.memoryCarTable);
+	}
+
+	public void addSoftMemoryCar(Car car) {
+		save(MyDatabase.softMemoryCarTable, car);
+	}
+
+	public int deleteSoftMemoryCar(String name) {
+		return delete(MyDatabase.softMemoryCarTable,
+				whereEquals(CarTable.name, name));
+	}
+
+	public void addSoftCar(Car car) {
+		save(MyDatabase.softCarTable, car);
+	}
+
+	public ArrayList<Car> getAllSoftCars() {
+		return findAll(MyDatabase.softCarTable);
+	}
+
+	public int deleteSoftCar(String name) {
+		return delete(MyDatabase.softCarTable,
+				whereEquals(CarTable.name, name));
+	}
+
+	public int recolourSoftCar(String name, String colour) {
+		ContentValues values = new ContentValues();
+		values.put(CarTable.colour, colour);
+		return update(MyDatabase.softCarTable, values,
+				whereEquals(CarTable.name, name));
+	}
+
+	public ArrayList<LSChange<Car>> getSoftCarChanges(long seq) {
+		return changesSince(MyDatabase.softCarTable, seq, 100);
+	}
+
+	public long latestSoftCarChange() {
+		long seq = 0;
+		ArrayList<LSChange<Car>> changes;
+		while (!(changes = getSoftCarChanges(seq)).isEmpty()) {
+			seq = changes.get(changes.size() - 1).getSeq();
+		}
+		return seq;
+	}
+
+	public int compactSoftCarChanges(long seq) {
+		return compactChanges(MyDatabase.softCarTable, seq);
+	}
+
+	public long addVersionedCar(Car car) {
+		return save(MyDatabase.versionedCarTable, car);
+	}
+
+	public LSUpdateResult<Car> recolourVersionedCar(long id, long version,
+			String colour) {
+		ContentValues values = new ContentValues();
+		values.put(CarTable.colour, colour);
+		return updateVersioned(MyDatabase.versionedCarTable, id, version,
+				values);
+	}
+
+	public int recolourVersionedCars(String colour) {
+		ContentValues values = new ContentValues();
+		values.put(CarTable.colour, colour);
+		return update(MyDatabase.versionedCarTable, values, null);
+	}
+
+	public int purgeSoftCars() {
+		return runMaintenance(0).getPurgedRows();
+	}
+
+	public ArrayList<Car> getCarsByColour(String colour) {
+		return find(MyDatabase.carTable, whereEquals(CarTable.colour, colour),
+				null, null);
+	}
+
+	@Override
+	public void startDiagnostics(long largeTableRows) {
+		super.startDiagnostics(largeTableRows);
+	}
+
+	@Override
+	public ArrayList<LSQueryStats> getQueryStats() {
+		return super.getQueryStats();
+	}
+
+	@Override
+	public ArrayList<String> getIndexSuggestions() {
+		return super.getIndexSuggestions();
+	}
+
+	public long addTrip(Trip trip) {
+		return save(MyDatabase.tripTable, trip);
+	}
+
+	public ArrayList<Trip> getAllTrips() {
+		return findAll(MyDatabase.tripTable);
+	}
+
 	public void dropAll() {
 		dropItLikeItsHot(MyDatabase.carTable);
 		dropItLikeItsHot(MyDatabase.manufacturerTable);
+		dropItLikeItsHot(MyDatabase.photoTable);
+		dropItLikeItsHot(MyDatabase.versionedCarTable);
+		dropItLikeItsHot(MyDatabase.softCarTable);
+		dropItLikeItsHot(MyDatabase.tripTable);
+		dropItLikeItsHot(MyDatabase.indexedCarTable);
+		dropItLikeItsHot(MyDatabase.mirroredManufacturerTable);
 	}
 
 	public Car randomCar() {
 		return findRandom(MyDatabase.carTable);
 	}
 
+	public Car randomSoftCar() {
+		return findRandom(MyDatabase.softCarTable);
+	}
+
 }
@@ -0,0 +1,30 @@
+package com.mhemmings.lsstorage.test;
+
+import com.mhemmings.lsstorage.LSObject;
+
+public class ManufacturerStats extends LSObject {
+
+	private int manufacturerId;
+	private int carCount;
+	private long latestCarId;
+
+	public ManufacturerStats(int manufacturerId, int carCount,
+			long latestCarId) {
+		this.manufacturerId = manufacturerId;
+		this.carCount = carCount;
+		this.latestCarId = latestCarId;
+	}
+
+	public int getManufacturerId() {
+		return manufacturerId;
+	}
+
+	public int getCarCount() {
+		return carCount;
+	}
+
+	public long getLatestCarId() {
+		return latestCarId;
+	}
+
+}
@@ -0,0 +1,54 @@
+package com.mhemmings.lsstorage.test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.ContentValues;
+
+import com.mhemmings.lsstorage.Column;
+import com.mhemmings.lsstorage.LSObject;
+import com.mhemmings.lsstorage.LSTable;
+import com.mhemmings.lsstorage.LSView;
+
+public class ManufacturerStatsView extends LSView<ManufacturerStats> {
+
+	@Column("INTEGER")
+	public final static String manufacturer_id = "manufacturer_id";
+
+	@Column("INTEGER")
+	public final static String car_count = "car_count";
+
+	@Column("INTEGER")
+	public final static String latest_car_id = "latest_car_id";
+
+	@Override
+	public LSTable<? extends LSObject> getSource() {
+		return MyDatabase.carTable;
+	}
+
+	@Override
+	public String getGroupColumn() {
+		return manufacturer_id;
+	}
+
+	@Override
+	public Map<String, String> getAggregates() {
+		Map<String, String> aggregates = new LinkedHashMap<String, String>();
+		aggregates.put(car_count, "COUNT(*)");
+		aggregates.put(latest_car_id, "MAX(" + LSObject._ID + ")");
+		return aggregates;
+	}
+
+	@Override
+	protected void in(ManufacturerStats stats) {
+		// Maintained by triggers, never written directly
+	}
+
+	@Override
+	protected ManufacturerStats out(ContentValues values) {
+		return new ManufacturerStats(values.getAsInteger(manufacturer_id),
+				values.getAsInteger(car_count),
+				values.getAsLong(latest_car_id));
+	}
+
+}
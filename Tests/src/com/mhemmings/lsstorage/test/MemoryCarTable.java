@@ -0,0 +1,10 @@
+package com.mhemmings.lsstorage.test;
+
+public class MemoryCarTable extends CarTable {
+
+	@Override
+	public int getStorageMode() {
+		return STORAGE_MEMORY;
+	}
+
+}
@@ -0,0 +1,10 @@
+package com.mhemmings.lsstorage.test;
+
+public class MirroredManufacturerTable extends ManufacturerTable {
+
+	@Override
+	public int getStorageMode() {
+		return STORAGE_MIRRORED;
+	}
+
+}
@@ -1,5 +1,10 @@
 package com.mhemmings.lsstorage.test;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import com.mhemmings.lsstorage.LSDatabase;
 import com.mhemmings.lsstorage.LSObject;
 import com.mhemmings.lsstorage.LSTable;
@@ -8,25 +13,67 @@ public class MyDatabase extends LSDatabase {
 
 	public static final LSTable<Car> carTable = new CarTable();
 	public static final LSTable<Manufacturer> manufacturerTable = new ManufacturerTable();
+	public static final LSTable<Photo> photoTable = new PhotoTable();
+	public static final LSTable<ManufacturerStats> manufacturerStatsView = new ManufacturerStatsView();
+	public static final LSTable<Car> memoryCarTable = new MemoryCarTable();
+	public static final LSTable<Car> softCarTable = new SoftCarTable();
+	public static final LSTable<Car> versionedCarTable = new VersionedCarTable();
+	public static final LSTable<Trip> tripTable = new TripTable();
+	public static final LSTable<Car> indexedCarTable = new IndexedCarTable();
+	public static final LSTable<Manufacturer> mirroredManufacturerTable = new MirroredManufacturerTable();
+	public static final LSTable<Car> softMemoryCarTable = new SoftMemoryCarTable();
 
 	public MyDatabase() {
-		super("CarsDatabase", 1);
+		this("CarsDatabase");
+	}
+
+	public MyDatabase(String name) {
+		super(name, 11);
+	}
+
+	public MyDatabase(File snapshot) {
+		this();
+		setSnapshotFile(snapshot);
 	}
 
 	@Override
 	public LSTable<LSObject>[] tables() {
-		return new LSTable[] { carTable, manufacturerTable };
+		return new LSTable[] { carTable, manufacturerTable, photoTable,
+				manufacturerStatsView, memoryCarTable, softCarTable,
+				versionedCarTable, tripTable, indexedCarTable,
+				mirroredManufacturerTable, softMemoryCarTable };
 	}
 
 	@Override
 	public String[] onUpgrade(int oldVersion) {
-		String sql[] = new String[0];
+		List<String> sql = new ArrayList<String>();
 
 		switch (oldVersion) {
 		case 1:
+			sql.add("CREATE TABLE IF NOT EXISTS PhotoTable(_id INTEGER PRIMARY KEY AUTOINCREMENT, name TEXT, thumbnail BLOB, original BLOB)");
+		case 2:
+			sql.add("ALTER TABLE PhotoTable ADD COLUMN description TEXT");
+		case 3:
+			sql.addAll(Arrays.asList(manufacturerStatsView
+					.getCreateStatements()));
+		case 4:
+			sql.add(softCarTable.getCreateStatement());
+		case 5:
+			sql.addAll(Arrays.asList(softCarTable.getCreateStatements()));
+		case 6:
+			sql.addAll(Arrays.asList(versionedCarTable.getCreateStatements()));
+		case 7:
+			sql.add(tripTable.getCreateStatement());
+		case 8:
+			sql.addAll(Arrays.asList(manufacturerStatsView
+					.getCreateStatements()));
+		case 9:
+			sql.add(indexedCarTable.getCreateStatement());
+		case 10:
+			sql.add(mirroredManufacturerTable.getCreateStatement());
 		}
 
-		return sql;
+		return sql.toArray(new String[sql.size()]);
 	}
 
 }
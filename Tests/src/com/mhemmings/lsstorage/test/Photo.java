@@ -0,0 +1,47 @@
+package com.mhemmings.lsstorage.test;
+
+import com.mhemmings.lsstorage.LSObject;
+
+public class Photo extends LSObject {
+
+	private long id;
+	private String name;
+	private String description;
+	private byte[] thumbnail;
+	private byte[] original;
+
+	public Photo(String name, String description, byte[] thumbnail,
+			byte[] original) {
+		this.name = name;
+		this.description = description;
+		this.thumbnail = thumbnail;
+		this.original = original;
+	}
+
+	public Photo(long id, String name, String description) {
+		this.id = id;
+		this.name = name;
+		this.description = description;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getDescription() {
+		return description;
+	}
+
+	public byte[] getThumbnail() {
+		return thumbnail;
+	}
+
+	public byte[] getOriginal() {
+		return original;
+	}
+
+}
@@ -0,0 +1,37 @@
+package com.mhemmings.lsstorage.test;
+
+import android.content.ContentValues;
+
+import com.mhemmings.lsstorage.Column;
+import com.mhemmings.lsstorage.LSObject;
+import com.mhemmings.lsstorage.LSTable;
+
+public class PhotoTable extends LSTable<Photo> {
+
+	@Column("TEXT")
+	public final static String name = "name";
+
+	@Column(value = "TEXT", compress = true)
+	public final static String description = "description";
+
+	@Column(value = "BLOB", lazy = true)
+	public final static String thumbnail = "thumbnail";
+
+	@Column(value = "BLOB", offload = 64 * 1024)
+	public final static String original = "original";
+
+	@Override
+	protected void in(Photo photo) {
+		putValue(name, photo.getName());
+		putValue(description, photo.getDescription());
+		putValue(thumbnail, photo.getThumbnail());
+		putValue(original, photo.getOriginal());
+	}
+
+	@Override
+	protected Photo out(ContentValues values) {
+		return new Photo(values.getAsLong(LSObject._ID),
+				values.getAsString(name), values.getAsString(description));
+	}
+
+}
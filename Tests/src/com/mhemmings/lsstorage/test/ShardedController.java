@@ -0,0 +1,51 @@
+package com.mhemmings.lsstorage.test;
+
+import java.util.ArrayList;
+
+import android.content.Context;
+
+import com.mhemmings.lsstorage.LSDatabase;
+import com.mhemmings.lsstorage.LSShardedController;
+
+public class ShardedController extends LSShardedController {
+
+	public ShardedController(Context context) {
+		super(context, new LSDatabase[] { new MyDatabase("CarsShard0"),
+				new MyDatabase("CarsShard1") });
+	}
+
+	public void addCar(String owner, Car car) {
+		save(owner, MyDatabase.carTable, car);
+	}
+
+	public ArrayList<Car> getCars(String owner) {
+		return find(owner, MyDatabase.carTable, null, null, null);
+	}
+
+	public ArrayList<Car> getAllCars(String orderBy, String limit) {
+		return find(MyDatabase.carTable, null, orderBy, limit);
+	}
+
+	public int shardOf(String owner) {
+		return shardFor(owner);
+	}
+
+	@Override
+	public void openShard(int shard) {
+		super.openShard(shard);
+	}
+
+	@Override
+	public void closeShard(int shard) {
+		super.closeShard(shard);
+	}
+
+	public void dropAll() {
+		for (int shard = 0; shard < getShardCount(); shard++) {
+			openShard(shard);
+		}
+		delete("alice", MyDatabase.carTable, null);
+		delete("bob", MyDatabase.carTable, null);
+	}
+
+}
@@ -0,0 +1,15 @@
+package com.mhemmings.lsstorage.test;
+
+public class SoftCarTable extends CarTable {
+
+	@Override
+	public boolean isSoftDelete() {
+		return true;
+	}
+
+	@Override
+	public boolean isChangeLogged() {
+		return true;
+	}
+
+}
@@ -0,0 +1,10 @@
+package com.mhemmings.lsstorage.test;
+
+public class SoftMemoryCarTable extends MemoryCarTable {
+
+	@Override
+	public boolean isSoftDelete() {
+		return true;
+	}
+
+}
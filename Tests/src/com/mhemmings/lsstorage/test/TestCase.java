@@ -1,12 +1,29 @@
 package com.mhemmings.lsstorage.test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Date;
 import java.util.List;
 
+import android.content.ContentValues;
 import android.test.AndroidTestCase;
 import android.util.Log;
 
+import com.mhemmings.lsstorage.LSChange;
+import com.mhemmings.lsstorage.LSController;
+import com.mhemmings.lsstorage.LSQueryStats;
+import com.mhemmings.lsstorage.LSTable;
+import com.mhemmings.lsstorage.LSUpdateResult;
+
 public class TestCase extends AndroidTestCase {
 
 	private Controller controller;
@@ -34,6 +51,40 @@ public class TestCase extends AndroidTestCase {
 		assertEquals(statement, carTable.getCreateStatement());
 	}
 
+	public void testTypedColumns() {
+		final long timestamp = 1400000000000L;
+		LSTable<Car> typed = new LSTable<Car>() {
+			@Override
+			protected void in(Car car) {
+				putValue("created", new Date(timestamp));
+				putValue("weight", 1234.5678901d);
+				putValue("electric", true);
+				putValue("vin", ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+			}
+
+			@Override
+			protected Car out(ContentValues values) {
+				return null;
+			}
+		};
+		ContentValues row = typed.createRow(billie);
+		assertEquals(timestamp, row.getAsLong("created").longValue());
+		assertEquals(new Date(timestamp), LSTable.getAsDate(row, "created"));
+		assertEquals(1234.5678901d, row.getAsDouble("weight").doubleValue());
+		assertTrue(LSTable.getAsBoolean(row, "electric"));
+		assertEquals(3, row.getAsByteArray("vin").length);
+	}
+
+	public void testLongRoundTrip() {
+		Date started = new Date(1400000000000L);
+		long distance = Long.MAX_VALUE - 1;
+		controller.addTrip(new Trip("Billie", started, distance));
+		ArrayList<Trip> trips = controller.getAllTrips();
+		assertEquals(1, trips.size());
+		assertEquals(started, trips.get(0).getStarted());
+		assertEquals(distance, trips.get(0).getDistance());
+	}
+
 	public void testAddCar() {
 		controller.addCar(billie);
 	}
@@ -80,6 +131,432 @@ public class TestCase extends AndroidTestCase {
 		assertEquals(car.getName(), billie.getName());
 	}
 
+	public void testUpdateByIds() {
+		long[] ids = new long[1500];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = controller.saveCar(new Car("Car" + i, "Red", new Manufacturer(
+					i, null, null)));
+		}
+		int changed = controller.changeColours(ids, "pink");
+		assertEquals(ids.length, changed);
+		assertEquals("pink", controller.getAllCars().get(1200).getColour());
+	}
+
+	public void testDeleteByIds() {
+		long[] ids = new long[1500];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = controller.saveCar(new Car("Car" + i, "Red", new Manufacturer(
+					i, null, null)));
+		}
+		long kept = controller.saveCar(jim);
+		int deleted = controller.deleteCars(ids);
+		assertEquals(ids.length, deleted);
+		assertEquals(0, controller.deleteCars(new long[] { ids[0] }));
+		ArrayList<Car> cars = controller.getAllCars();
+		assertEquals(1, cars.size());
+		assertEquals(jim.getName(), cars.get(0).getName());
+		assertTrue(kept > 0);
+	}
+
+	public void testLazyBlob() throws IOException {
+		byte[] thumbnail = new byte[600 * 1024];
+		Arrays.fill(thumbnail, (byte) 7);
+		long id = controller.addPhoto(new Photo("Billie", null, thumbnail, null));
+		Photo photo = controller.getAllPhotos().get(0);
+		assertEquals(id, photo.getId());
+		assertEquals("Billie", photo.getName());
+		assertTrue(Arrays.equals(thumbnail,
+				readFully(controller.openThumbnail(id))));
+		assertNull(controller.openOriginal(id));
+	}
+
+	public void testOffloadedBlob() throws IOException {
+		byte[] original = new byte[100 * 1024];
+		Arrays.fill(original, (byte) 9);
+		long id = controller.addPhoto(new Photo("Jim", null, null, original));
+		assertTrue(Arrays.equals(original,
+				readFully(controller.openOriginal(id))));
+		assertEquals(0, controller.purgePhotos());
+		controller.dropAll();
+		assertEquals(1, controller.purgePhotos());
+	}
+
+	public void testCompressedColumn() {
+		String json = sampleJson(200);
+		controller.addPhoto(new Photo("Billie", json, null, null));
+		controller.addPhoto(new Photo("Jim", "short", null, null));
+		ArrayList<Photo> photos = controller.getAllPhotos();
+		assertEquals(json, photos.get(0).getDescription());
+		assertEquals("short", photos.get(1).getDescription());
+	}
+
+	public void testStreamedText() throws IOException {
+		String json = sampleJson(200) + "\u00e9";
+		long compressed = controller.addPhoto(new Photo("Billie", json, null,
+				null));
+		long raw = controller.addPhoto(new Photo("Jim", "cr\u00e8me", null,
+				null));
+		assertEquals(json, new String(readFully(controller
+				.openDescription(compressed)), "UTF-8"));
+		assertEquals("cr\u00e8me", new String(readFully(controller
+				.openDescription(raw)), "UTF-8"));
+	}
+
+	public void testCompressionBenchmark() {
+		String json = sampleJson(2000);
+		PhotoTable table = new PhotoTable();
+		Photo photo = new Photo("Billie", json, null, null);
+		int rawSize = json.length();
+		int compressedSize = table.createRow(photo).getAsByteArray(
+				PhotoTable.description).length;
+		assertTrue(compressedSize < rawSize);
+
+		int rows = 200;
+		Photo[] photos = new Photo[rows];
+		Arrays.fill(photos, photo);
+		long start = System.nanoTime();
+		controller.addPhotos(photos);
+		long written = System.nanoTime() - start;
+		start = System.nanoTime();
+		assertEquals(rows, controller.getAllPhotos().size());
+		long read = System.nanoTime() - start;
+
+		double megabytes = (double) rawSize * rows / (1024 * 1024);
+		Log.i("compression", "ratio " + (double) compressedSize / rawSize
+				+ ", write " + megabytes / (written / 1e9) + " MB/s, read "
+				+ megabytes / (read / 1e9) + " MB/s");
+	}
+
+	public void testMaterializedView() {
+		Car miata = new Car("Miata", "White", billie.getManufacturer());
+		controller.addCars(new Car[] { billie, jim });
+		long miataId = controller.saveCar(miata);
+		ManufacturerStats mazda = controller.getManufacturerStats(12);
+		assertEquals(2, mazda.getCarCount());
+		assertEquals(miataId, mazda.getLatestCarId());
+		assertEquals(1, controller.getManufacturerStats(10).getCarCount());
+
+		controller.delete("Jim");
+		assertNull(controller.getManufacturerStats(10));
+		controller.deleteCars(new long[] { miataId });
+		mazda = controller.getManufacturerStats(12);
+		assertEquals(1, mazda.getCarCount());
+		assertTrue(mazda.getLatestCarId() < miataId);
+	}
+
+	public void testExportImportBinary() throws IOException {
+		exportImport(LSController.FORMAT_BINARY);
+	}
+
+	public void testExportImportCsv() throws IOException {
+		exportImport(LSController.FORMAT_CSV);
+	}
+
+	private void exportImport(int format) throws IOException {
+		Car awkward = new Car("Jim \"The Car\", Mk2", "Red\r\nBlue",
+				new Manufacturer(-3, null, null));
+		Car plain = new Car("Billie", null, billie.getManufacturer());
+		controller.addCars(new Car[] { awkward, plain });
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(2, controller.exportCars(out, format));
+
+		controller.dropAll();
+		assertEquals(2, controller.importCars(
+				new ByteArrayInputStream(out.toByteArray()), format));
+		ArrayList<Car> cars = controller.getAllCars();
+		assertEquals(2, cars.size());
+		assertEquals(awkward.getName(), cars.get(0).getName());
+		assertEquals(awkward.getColour(), cars.get(0).getColour());
+		assertEquals(-3, cars.get(0).getManufacturer().getId());
+		assertNull(cars.get(1).getColour());
+	}
+
+	public void testExportOffloaded() throws IOException {
+		byte[] original = new byte[100 * 1024];
+		Arrays.fill(original, (byte) 5);
+		controller.addPhoto(new Photo("Billie", null, null, null));
+		long id = controller.addPhoto(new Photo("Jim", null, null, original));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(2, controller.exportPhotos(out));
+
+		controller.dropAll();
+		assertEquals(1, controller.purgePhotos());
+		assertEquals(2, controller.importPhotos(new ByteArrayInputStream(out
+				.toByteArray())));
+		assertEquals(id, controller.getAllPhotos().get(1).getId());
+		assertTrue(Arrays.equals(original,
+				readFully(controller.openOriginal(id))));
+	}
+
+	public void testSnapshot() throws IOException {
+		controller.addCars(new Car[] { billie, jim });
+		File snapshot = new File(getContext().getCacheDir(), "snapshot.db");
+		String name = new MyDatabase().getDbName();
+		FileInputStream in = new FileInputStream(getContext().getDatabasePath(
+				name));
+		FileOutputStream out = new FileOutputStream(snapshot);
+		out.write(readFully(in));
+		out.close();
+
+		getContext().deleteDatabase(name);
+		controller = new Controller(getContext(), new MyDatabase(snapshot));
+		assertEquals(2, controller.getAllCars().size());
+		snapshot.delete();
+	}
+
+	public void testMirroredTable() {
+		long mazda = controller.addMirroredManufacturer(billie
+				.getManufacturer());
+		Manufacturer found = controller.getMirroredManufacturer(mazda);
+		assertEquals("Mazda", found.getName());
+		assertSame(found, controller.getMirroredManufacturer(mazda));
+		assertSame(found, controller.getAllMirroredManufacturers().get(0));
+
+		long ford = controller.addMirroredManufacturer(jim.getManufacturer());
+		assertEquals("Ford", controller.getMirroredManufacturer(ford)
+				.getName());
+		assertEquals(1, controller.renameMirroredManufacturer(mazda, "Eunos"));
+		assertEquals("Eunos", controller.getMirroredManufacturer(mazda)
+				.getName());
+
+		controller = new Controller(getContext());
+		assertEquals("Eunos", controller.getMirroredManufacturer(mazda)
+				.getName());
+		assertEquals(2, controller.getAllMirroredManufacturers().size());
+		controller.dropAll();
+		assertNull(controller.getMirroredManufacturer(ford));
+	}
+
+	public void testMemoryTable() {
+		controller.addMemoryCar(billie);
+		assertEquals(1, controller.getAllMemoryCars().size());
+		assertEquals(0, controller.getAllCars().size());
+		controller = new Controller(getContext());
+		assertEquals(0, controller.getAllMemoryCars().size());
+	}
+
+	public void testSoftDelete() throws InterruptedException {
+		controller.addSoftCar(billie);
+		controller.addSoftCar(jim);
+		assertEquals(1, controller.deleteSoftCar("Jim"));
+		assertEquals(0, controller.deleteSoftCar("Jim"));
+		ArrayList<Car> cars = controller.getAllSoftCars();
+		assertEquals(1, cars.size());
+		assertEquals(billie.getName(), cars.get(0).getName());
+		Thread.sleep(10);
+		assertEquals(1, controller.purgeSoftCars());
+		assertEquals(0, controller.purgeSoftCars());
+		assertEquals(1, controller.getAllSoftCars().size());
+		controller.deleteSoftCar("Billie");
+		Thread.sleep(10);
+		controller.purgeSoftCars();
+	}
+
+	public void testSoftDeleteMemoryTable() throws InterruptedException {
+		controller.addSoftMemoryCar(billie);
+		controller.addSoftMemoryCar(jim);
+		assertEquals(1, controller.deleteSoftMemoryCar("Jim"));
+		Thread.sleep(10);
+		assertEquals(1, controller.purgeSoftCars());
+		assertEquals(0, controller.purgeSoftCars());
+	}
+
+	public void testRandomSoftCar() throws InterruptedException {
+		controller.addSoftCar(billie);
+		controller.addSoftCar(jim);
+		controller.deleteSoftCar("Jim");
+		for (int i = 0; i < 10; i++) {
+			assertEquals(billie.getName(), controller.randomSoftCar()
+					.getName());
+		}
+		controller.deleteSoftCar("Billie");
+		assertNull(controller.randomSoftCar());
+		Thread.sleep(10);
+		controller.purgeSoftCars();
+	}
+
+	public void testChangeLog() throws InterruptedException {
+		long seq = controller.latestSoftCarChange();
+		controller.addSoftCar(billie);
+		controller.addSoftCar(jim);
+		controller.deleteSoftCar("Jim");
+		ArrayList<LSChange<Car>> changes = controller.getSoftCarChanges(seq);
+		assertEquals(2, changes.size());
+		assertEquals(LSChange.INSERT, changes.get(0).getOperation());
+		assertEquals("Billie", changes.get(0).getObject().getName());
+		assertEquals(LSChange.DELETE, changes.get(1).getOperation());
+		assertNull(changes.get(1).getObject());
+
+		controller.recolourSoftCar("Billie", "Green");
+		changes = controller.getSoftCarChanges(seq);
+		assertEquals(2, changes.size());
+		assertEquals(LSChange.DELETE, changes.get(0).getOperation());
+		assertEquals(LSChange.UPDATE, changes.get(1).getOperation());
+		assertEquals("Green", changes.get(1).getObject().getColour());
+		long latest = changes.get(1).getSeq();
+		assertEquals(0, controller.getSoftCarChanges(latest).size());
+
+		assertTrue(controller.compactSoftCarChanges(latest) >= 1);
+		assertEquals(1, controller.getSoftCarChanges(seq).size());
+		controller.deleteSoftCar("Billie");
+		Thread.sleep(10);
+		controller.purgeSoftCars();
+	}
+
+	public void testSharding() {
+		ShardedController sharded = new ShardedController(getContext());
+		Car mx5 = new Car("MX-5", "Silver", billie.getManufacturer());
+		sharded.addCar("alice", billie);
+		sharded.addCar("alice", mx5);
+		sharded.addCar("bob", jim);
+		assertEquals(2, sharded.getCars("alice").size());
+		assertEquals(1, sharded.getCars("bob").size());
+
+		ArrayList<Car> cars = sharded.getAllCars("name DESC", null);
+		assertEquals(3, cars.size());
+		assertEquals("MX-5", cars.get(0).getName());
+		assertEquals("Jim", cars.get(1).getName());
+		assertEquals("Billie", cars.get(2).getName());
+		cars = sharded.getAllCars("colour, name", "1 OFFSET 1");
+		assertEquals(1, cars.size());
+		assertEquals("Billie", cars.get(0).getName());
+
+		int bobs = sharded.shardOf("bob");
+		sharded.closeShard(bobs);
+		try {
+			sharded.getCars("bob");
+			fail("Shard should be closed");
+		} catch (IllegalStateException e) {
+		}
+		assertTrue(sharded.shardOf("alice") != bobs);
+		assertEquals(2, sharded.getAllCars(null, null).size());
+		sharded.openShard(bobs);
+		assertEquals(1, sharded.getCars("bob").size());
+		sharded.dropAll();
+	}
+
+	public void testVersionedUpdate() {
+		long id = controller.addVersionedCar(billie);
+		LSUpdateResult<Car> first = controller.recolourVersionedCar(id, 1,
+				"Green");
+		assertTrue(first.isUpdated());
+		assertEquals(2, first.getVersion());
+
+		LSUpdateResult<Car> second = controller.recolourVersionedCar(id, 1,
+				"Blue");
+		assertTrue(second.isConflict());
+		assertEquals(2, second.getVersion());
+		assertEquals("Green", second.getCurrent().getColour());
+		second = controller.recolourVersionedCar(id, second.getVersion(),
+				"Blue");
+		assertTrue(second.isUpdated());
+		assertEquals(3, second.getVersion());
+
+		controller.recolourVersionedCars("Black");
+		assertTrue(controller.recolourVersionedCar(id, 3, "White")
+				.isConflict());
+		assertEquals(LSUpdateResult.NOT_FOUND, controller
+				.recolourVersionedCar(id + 1, 1, "White").getStatus());
+	}
+
+	public void testQueryDiagnostics() {
+		controller.addCars(new Car[] { billie, jim });
+		controller.startDiagnostics(1);
+		assertEquals(1, controller.getCarsByColour("Red").size());
+		assertEquals(1, controller.getCarsByColour("Blue").size());
+		controller.getAllCars();
+
+		ArrayList<LSQueryStats> stats = controller.getQueryStats();
+		assertEquals(2, stats.size());
+		LSQueryStats byColour = null;
+		for (LSQueryStats shape : stats) {
+			if ("colour=?".equals(shape.getWhere()))
+				byColour = shape;
+		}
+		assertNotNull(byColour);
+		assertEquals(2, byColour.getCount());
+		assertTrue(byColour.isFullScan());
+		assertEquals(
+				"CREATE INDEX IF NOT EXISTS CarTable_colour ON CarTable(colour)",
+				byColour.getSuggestedIndex());
+		assertTrue(controller.getIndexSuggestions().contains(
+				byColour.getSuggestedIndex()));
+	}
+
+	public void testShardedConcurrentSaves() throws InterruptedException {
+		final ShardedController sharded = new ShardedController(getContext());
+		final int cars = 200;
+		Thread[] owners = new Thread[2];
+		for (int i = 0; i < owners.length; i++) {
+			final String owner = i == 0 ? "alice" : "bob";
+			owners[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int car = 0; car < cars; car++) {
+						sharded.addCar(owner, new Car(owner + car, "Red",
+								billie.getManufacturer()));
+					}
+				}
+			};
+			owners[i].start();
+		}
+		for (Thread owner : owners) {
+			owner.join();
+		}
+		for (String owner : new String[] { "alice", "bob" }) {
+			ArrayList<Car> found = sharded.getCars(owner);
+			assertEquals(cars, found.size());
+			for (Car car : found) {
+				assertTrue(car.getName().startsWith(owner));
+			}
+		}
+		sharded.dropAll();
+	}
+
+	public void testIndexedLookup() {
+		controller.addIndexedCars(new Car[] { billie, jim });
+		Car found = controller.findIndexedCar("Jim");
+		assertEquals(jim.getColour(), found.getColour());
+		assertSame(found, controller.findIndexedCar("Jim"));
+		assertNull(controller.findIndexedCar("Nobody"));
+		assertEquals("Ford", controller.getIndexedCar("Jim").getManufacturer()
+				.getName());
+		assertNull(controller.findIndexedCar("Jim").getManufacturer()
+				.getName());
+
+		controller.changeIndexedColour("Jim", "Green");
+		assertEquals("Green", controller.findIndexedCar("Jim").getColour());
+		long miata = controller.saveIndexedCar(new Car("Miata", "White",
+				billie.getManufacturer()));
+		assertEquals("White", controller.findIndexedCar("Miata").getColour());
+		controller.deleteIndexedCars(new long[] { miata });
+		assertNull(controller.findIndexedCar("Miata"));
+		controller.deleteIndexedCar("Jim");
+		assertNull(controller.findIndexedCar("Jim"));
+		assertEquals("Mazda", controller.getIndexedCar("Billie")
+				.getManufacturer().getName());
+	}
+
+	public void testParallelScan() {
+		Car[] cars = new Car[20000];
+		for (int i = 0; i < cars.length; i++) {
+			cars[i] = new Car("Car" + i, i % 2 == 0 ? "Red" : "Blue",
+					billie.getManufacturer());
+		}
+		controller.saveCars(cars);
+
+		for (int threads = 1; threads <= 8; threads *= 2) {
+			long start = System.nanoTime();
+			ArrayList<Car> found = controller.getAllCarsParallel(threads);
+			long elapsed = System.nanoTime() - start;
+			assertEquals(cars.length, found.size());
+			assertEquals("Car0", found.get(0).getName());
+			assertEquals("Car19999", found.get(cars.length - 1).getName());
+			Log.i("parallel", threads + " threads: " + elapsed / 1000000
+					+ " ms");
+		}
+	}
+
 	public void testRandom() {
 		controller.addCars(new Car[] { billie, jim });
 		List<String> cars = new ArrayList<String>();
@@ -93,4 +570,26 @@ public class TestCase extends AndroidTestCase {
 		Log.e("billie", billies + "");
 		Log.e("jim", jims + "");
 	}
+
+	private String sampleJson(int records) {
+		StringBuilder json = new StringBuilder("[");
+		for (int i = 0; i < records; i++) {
+			if (i > 0)
+				json.append(',');
+			json.append("{\"id\":").append(i)
+					.append(",\"colour\":\"Red\",\"manufacturer\":\"Mazda\"}");
+		}
+		return json.append(']').toString();
+	}
+
+	private byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		in.close();
+		return out.toByteArray();
+	}
 }
@@ -0,0 +1,31 @@
+package com.mhemmings.lsstorage.test;
+
+import java.util.Date;
+
+import com.mhemmings.lsstorage.LSObject;
+
+public class Trip extends LSObject {
+
+	private String car;
+	private Date started;
+	private long distance;
+
+	public Trip(String car, Date started, long distance) {
+		this.car = car;
+		this.started = started;
+		this.distance = distance;
+	}
+
+	public String getCar() {
+		return car;
+	}
+
+	public Date getStarted() {
+		return started;
+	}
+
+	public long getDistance() {
+		return distance;
+	}
+
+}
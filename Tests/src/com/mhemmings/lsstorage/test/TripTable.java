@@ -0,0 +1,32 @@
+package com.mhemmings.lsstorage.test;
+
+import android.content.ContentValues;
+
+import com.mhemmings.lsstorage.Column;
+import com.mhemmings.lsstorage.LSTable;
+
+public class TripTable extends LSTable<Trip> {
+
+	@Column("TEXT")
+	public final static String car = "car";
+
+	@Column("INTEGER")
+	public final static String started = "started";
+
+	@Column("INTEGER")
+	public final static String distance = "distance";
+
+	@Override
+	protected void in(Trip trip) {
+		putValue(car, trip.getCar());
+		putValue(started, trip.getStarted());
+		putValue(distance, trip.getDistance());
+	}
+
+	@Override
+	protected Trip out(ContentValues values) {
+		return new Trip(values.getAsString(car), getAsDate(values, started),
+				values.getAsLong(distance));
+	}
+
+}
@@ -0,0 +1,10 @@
+package com.mhemmings.lsstorage.test;
+
+import com.mhemmings.lsstorage.Column;
+
+public class VersionedCarTable extends CarTable {
+
+	@Column(value = "INTEGER", version = true)
+	public final static String version = "version";
+
+}